@@ -0,0 +1,119 @@
+/**
+ * GridboxMeasureTest.java - measuring and laying out declared tracks
+ *
+ * Author: Edward A. Falk
+ *         efalk@users.sourceforge.net
+ */
+
+package org.efalk.gridbox;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.Context;
+import android.view.Gravity;
+import android.view.View;
+import android.view.View.MeasureSpec;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * A Gridbox with declared columns and rows ("100px 1fr auto" by
+ * "auto 24px"), holding children of known sizes.  The declared tracks
+ * must keep their sizes whatever the children ask for, the auto ones
+ * fit their children, and the children end up where the tracks put
+ * them.
+ */
+@RunWith(AndroidJUnit4.class)
+public class GridboxMeasureTest {
+
+  private Context ctx;
+
+  @Before
+  public void setUp() {
+    ctx = InstrumentationRegistry.getInstrumentation().getTargetContext();
+  }
+
+  @Test
+  public void declaredTracks() {
+    final Gridbox g = new Gridbox(ctx);
+    g.setColumnSizes("100px 1fr auto");
+    g.setRowSizes("auto 24px");
+    final Box a = add(g, 0, 0, 40, 30, Gravity.FILL);
+    final Box b = add(g, 1, 0, 50, 20, Gravity.FILL_HORIZONTAL | Gravity.TOP);
+    final Box c = add(g, 2, 0, 60, 45, Gravity.CENTER);
+    final Box d = add(g, 0, 1, 150, 50, Gravity.FILL);    // wider than 100px
+    final Box e = add(g, 2, 1, 10, 10, Gravity.CENTER);
+
+    g.measure(MeasureSpec.makeMeasureSpec(400, MeasureSpec.EXACTLY),
+	      MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED));
+    // Columns 100, 240 (the rest) and 60; rows 45 and 24.
+    assertEquals(400, g.getMeasuredWidth());
+    assertEquals(69, g.getMeasuredHeight());
+    g.layout(0, 0, g.getMeasuredWidth(), g.getMeasuredHeight());
+
+    assertFrame(a, 0, 0, 100, 45);
+    assertFrame(b, 100, 0, 240, 20);
+    assertFrame(c, 340, 0, 60, 45);
+    assertFrame(d, 0, 45, 100, 24);
+    assertFrame(e, 365, 52, 10, 10);
+
+    // Entirely in declared tracks, d is only asked the once.
+    assertEquals(1, d.measures);
+  }
+
+  @Test
+  public void fractionsAskForNothing() {
+    final Gridbox g = new Gridbox(ctx);
+    g.setColumnSizes("100px 1fr auto");
+    add(g, 0, 0, 40, 30, Gravity.FILL);
+    add(g, 1, 0, 50, 20, Gravity.FILL);
+    add(g, 2, 0, 60, 45, Gravity.CENTER);
+
+    g.measure(MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED),
+	      MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED));
+    assertEquals(160, g.getMeasuredWidth());
+    assertEquals(45, g.getMeasuredHeight());
+  }
+
+  private Box add(Gridbox g, int col, int row, int w, int h, int gravity) {
+    final Box box = new Box(ctx, w, h);
+    final Gridbox.LayoutParams lp = new Gridbox.LayoutParams(
+	Gridbox.LayoutParams.WRAP_CONTENT, Gridbox.LayoutParams.WRAP_CONTENT);
+    lp.gridx = col;
+    lp.gridy = row;
+    lp.colSpan = lp.rowSpan = 1;
+    lp.gravity = gravity;
+    g.addView(box, lp);
+    return box;
+  }
+
+  private static void assertFrame(View v, int x, int y, int w, int h) {
+    assertEquals("left", x, v.getLeft());
+    assertEquals("top", y, v.getTop());
+    assertEquals("width", w, v.getWidth());
+    assertEquals("height", h, v.getHeight());
+  }
+
+  /** A view which would like to be w x h, and counts its measures. */
+  private static class Box extends View {
+    final int w, h;
+    int measures = 0;
+
+    Box(Context ctx, int w, int h) {
+      super(ctx);
+      this.w = w;
+      this.h = h;
+    }
+
+    @Override
+    protected void onMeasure(int wspec, int hspec) {
+      ++measures;
+      setMeasuredDimension(resolveSize(w, wspec), resolveSize(h, hspec));
+    }
+  }
+}
@@ -0,0 +1,85 @@
+/**
+ * AllocationCheck.java - verify that a steady-state solve allocates nothing
+ */
+
+package org.efalk.gridbox.bench;
+
+import java.lang.management.ManagementFactory;
+
+import org.efalk.gridbox.core.GridSolver;
+
+/**
+ * Repeats the measure/layout cycle Gridbox runs on an unchanged grid,
+ * and fails (exit status 1) if any of it allocates.  After a few
+ * warm-up cycles, the solver is expected to be running entirely out
+ * of the buffers it already has.
+ *
+ * The JIT can allocate a few bytes on this thread while it swaps in
+ * compiled code, so the cycles are timed in several rounds and only
+ * the quietest round counts.  A real allocation in the solver shows
+ * up in every round.
+ *
+ * Run with "gradle checkAllocation".  Needs a JVM that implements
+ * com.sun.management.ThreadMXBean, which HotSpot and OpenJ9 both do.
+ */
+public final class AllocationCheck {
+
+  private static final int WARMUP = 5;
+  private static final int CYCLES = 50;
+  private static final int ROUNDS = 5;
+
+  public static void main(String[] args) {
+    final com.sun.management.ThreadMXBean mx =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    final long tid = Thread.currentThread().getId();
+    int failures = 0;
+
+    for( int cells : new int[] {10, 1000, 100000} ) {
+      for( String spans : new String[] {"none", "mixed", "banner"} ) {
+        for( boolean uniform : new boolean[] {false, true} ) {
+          final GridSolver solver = new GridSolver();
+          solver.setForceUniformWidth(uniform);
+          solver.setForceUniformHeight(uniform);
+          SyntheticGrid.fill(solver, cells, spans, true);
+
+          for( int i = 0; i < WARMUP; ++i ) cycle(solver);
+          long bytes = Long.MAX_VALUE;
+          for( int r = 0; r < ROUNDS; ++r ) {
+            final long before = mx.getThreadAllocatedBytes(tid);
+            for( int i = 0; i < CYCLES; ++i ) cycle(solver);
+            bytes = Math.min(bytes,
+                              mx.getThreadAllocatedBytes(tid) - before);
+          }
+
+          final String name = cells + " cells, spans=" + spans +
+                                ", uniform=" + uniform;
+          if( bytes != 0 ) {
+            System.out.println("FAIL " + name + ": " + bytes +
+                                " bytes in " + CYCLES + " cycles");
+            ++failures;
+          } else {
+            System.out.println("ok   " + name);
+          }
+        }
+      }
+    }
+    if( failures > 0 ) System.exit(1);
+  }
+
+  // One Gridbox measure + layout: every cell is described again,
+  // unchanged, then the grid is solved.
+  private static void cycle(GridSolver solver) {
+    final int n = solver.getCellCount();
+    for( int i = 0; i < n; ++i ) {
+      solver.setVisible(i, true);
+      solver.setCell(i, solver.getGridx(i), solver.getGridy(i),
+                        solver.getColSpan(i), solver.getRowSpan(i));
+      solver.setPreferredSize(i, 40, 20);
+    }
+    solver.computeTrackSizes();
+    final int width = solver.getPreferredWidth() * 3 / 2;
+    final int height = solver.getPreferredHeight() * 3 / 2;
+    solver.distribute(width, height);
+    solver.layout(0, 0);
+  }
+}
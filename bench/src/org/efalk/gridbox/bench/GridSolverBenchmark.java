@@ -0,0 +1,124 @@
+/**
+ * GridSolverBenchmark.java - JMH benchmarks for GridSolver
+ */
+
+package org.efalk.gridbox.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.efalk.gridbox.core.GridSolver;
+
+/**
+ * Each phase of a Gridbox measure/layout, run against a synthetic
+ * grid (see SyntheticGrid).  The grid is built and solved once in
+ * setup, so each benchmark repeats one phase on a warm solver, which
+ * is what a relayout of an unchanged Gridbox does.
+ *
+ * Run with the gc profiler (the default in build.gradle) to get
+ * allocation per operation alongside throughput.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class GridSolverBenchmark {
+
+  @Param({"10", "1000", "100000", "1000000"})
+  public int cells;
+
+  // "none" takes the solver's fast path for grids of 1x1 cells;
+  // "general" is the same grid with the fast path turned off, and
+  // "one" the same grid with one spanning cell.
+  @Param({"none", "general", "one", "mixed", "banner"})
+  public String spans;
+
+  @Param({"false", "true"})
+  public boolean weights;
+
+  @Param({"false", "true"})
+  public boolean uniform;
+
+  private GridSolver solver;
+  private int width, height;
+  private boolean toggle;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    solver = new GridSolver();
+    solver.setForceUniformWidth(uniform);
+    solver.setForceUniformHeight(uniform);
+    solver.setFastPath(!spans.equals("general"));
+    SyntheticGrid.fill(solver, cells, spans, weights);
+    solver.computeTrackSizes();
+
+    // Give the grid 50% more room than it asks for, so that there
+    // is excess to distribute.
+    width = solver.getPreferredWidth() * 3 / 2;
+    height = solver.getPreferredHeight() * 3 / 2;
+    solver.distribute(width, height);
+    solver.layout(0, 0);
+  }
+
+  /** Span passes: preferred track sizes from cell sizes. */
+  @Benchmark
+  public int trackSizes() {
+    solver.invalidateTracks();
+    solver.computeTrackSizes();
+    return solver.getPreferredWidth() + solver.getPreferredHeight();
+  }
+
+  /**
+   * distributeExcess() on both axes, by weight or uniform.  The track
+   * sizes are left as setup computed them; the size asked for changes
+   * by a pixel each time, since the solver keeps the last distribution
+   * while its tracks and size are unchanged.
+   */
+  @Benchmark
+  public int distribute() {
+    toggle = !toggle;
+    final int d = toggle ? 1 : 0;
+    solver.distribute(width + d, height + d);
+    return solver.getColumnWidth(0) + solver.getRowHeight(0);
+  }
+
+  /** Track positions and cell frames. */
+  @Benchmark
+  public int layout() {
+    solver.layout(0, 0);
+    return solver.getFrameX(solver.getCellCount() - 1);
+  }
+
+  /**
+   * One cell in the middle of the grid changes size, without becoming
+   * the largest in its row or column, and the grid is re-solved.  Only
+   * that cell's tracks should be touched.
+   */
+  @Benchmark
+  public int resizeOne() {
+    toggle = !toggle;
+    final int i = cells / 2;
+    solver.setPreferredSize(i, toggle ? 2 : 1, toggle ? 2 : 1);
+    solver.computeTrackSizes();
+    solver.distribute(width, height);
+    return solver.getPreferredWidth() + solver.getColumnWidth(0);
+  }
+
+  /** Everything a full Gridbox measure + layout asks of the solver. */
+  @Benchmark
+  public int solve() {
+    solver.countCells();
+    solver.computeTrackSizes();
+    solver.distribute(width, height);
+    solver.layout(0, 0);
+    return solver.getFrameX(solver.getCellCount() - 1);
+  }
+}
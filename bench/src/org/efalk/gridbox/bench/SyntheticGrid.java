@@ -0,0 +1,85 @@
+/**
+ * SyntheticGrid.java - generated grids for benchmarking GridSolver
+ */
+
+package org.efalk.gridbox.bench;
+
+import org.efalk.gridbox.core.GridSolver;
+
+/**
+ * Fills a GridSolver with a roughly square grid of n cells, laid out
+ * by rows.  Sizes and weights come from a fixed-seed generator so that
+ * every run sees the same grid.
+ *
+ * Span mixes:
+ *
+ *      none            every cell is 1x1
+ *      general         as none; GridSolverBenchmark turns the fast
+ *                      path off for it
+ *      one             as none, but the first cell spans two columns,
+ *                      which is enough to take the general (spanning)
+ *                      path in the solver
+ *      mixed           about one cell in 8 spans 2-4 columns, one in 12
+ *                      spans 2-3 rows; cells in later rows flow around
+ *                      the row spans, so no two cells overlap
+ *      banner          the first cell of every 50th row spans the full
+ *                      width, like a section header
+ */
+final class SyntheticGrid {
+
+  private SyntheticGrid() {}
+
+  static void fill(GridSolver solver, int n, String spans, boolean weights)
+  {
+    final int ncol = Math.max(1, (int) Math.sqrt(n));
+    long seed = 0x5DEECE66DL;
+
+    // The first row not yet covered by a row span, in each column
+    final int[] free = new int[ncol];
+
+    solver.setCellCount(n);
+    int x = 0, y = 0;
+    for( int i = 0; i < n; ++i ) {
+      while( free[x] > y ) {
+        if( ++x >= ncol ) {
+          x = 0;
+          ++y;
+        }
+      }
+      seed = seed * 6364136223846793005L + 1442695040888963407L;
+      final int r = (int) (seed >>> 33);
+
+      int cols = 1, rows = 1;
+      if( spans.equals("mixed") ) {
+        if( r % 8 == 0 ) cols = 2 + (r >>> 4) % 3;
+        if( r % 12 == 1 ) rows = 2 + (r >>> 8) % 2;
+      } else if( spans.equals("one") ) {
+        if( i == 0 ) cols = 2;
+      } else if( spans.equals("banner") ) {
+        if( x == 0 && y % 50 == 0 ) cols = ncol;
+      }
+      if( x + cols > ncol ) cols = ncol - x;
+      for( int c = 1; c < cols; ++c )
+        if( free[x + c] > y ) {
+          cols = c;
+          break;
+        }
+
+      solver.setCell(i, x, y, cols, rows);
+      solver.setCellParams(i,
+          weights ? (r >>> 12) % 3 : 0,
+          weights ? (r >>> 14) % 2 : 0,
+          GridSolver.FILL);
+      solver.setMargins(i, 2, 2, 2, 2);
+      solver.setPreferredSize(i, 20 + (r >>> 16) % 80, 16 + (r >>> 20) % 24);
+
+      for( int c = x; c < x + cols; ++c ) free[c] = y + rows;
+      x += cols;
+      if( x >= ncol ) {
+        x = 0;
+        ++y;
+      }
+    }
+    solver.countCells();
+  }
+}
@@ -0,0 +1,202 @@
+/**
+ * CellIndex.java - map grid coordinates back to cells
+ *
+ * Author: Edward A. Falk
+ *         efalk@users.sourceforge.net
+ *
+ *
+ */
+
+package org.efalk.gridbox.core;
+
+import java.util.Arrays;
+
+/**
+ * Occupancy index for GridSolver:  for each (col,row) in the grid,
+ * which cell covers it.  Spanning cells are entered at every coordinate
+ * they cover.
+ *
+ * Dense grids use a plain row-major array, with some room for the
+ * grid to grow.  Sparse ones, where that array would be mostly empty,
+ * use an open-addressed hash table keyed on the coordinates instead.
+ */
+final class CellIndex {
+
+  private int ncol, nrow;
+  private boolean dense;
+
+  // Dense: cell+1 at grid[row*stride + col], 0 for empty
+  private int[] grid = new int[0];
+  private int stride;
+  private int live;                     // Occupied coordinates
+
+  // Sparse: linear probing.  vals[] holds cell+1, 0 for a free slot
+  // and DELETED for a slot whose entry was removed.
+  private static final int DELETED = -1;
+  private long[] keys = new long[0];
+  private int[] vals = new int[0];
+  private int used;                     // live entries plus DELETED
+
+  /**
+   * Empty the index and size it for an ncol x nrow grid in which
+   * 'covered' coordinates will be occupied.
+   */
+  void reset(int ncol, int nrow, long covered)
+  {
+    this.ncol = ncol;
+    this.nrow = nrow;
+    live = 0;
+    stride = ncol + (ncol >> 2);
+    final long area = (long) stride * nrow;
+    dense = area <= Math.max(256, covered * 4) && area <= Integer.MAX_VALUE;
+    if( dense ) {
+      if( grid.length < area ) grid = new int[(int) area];
+      else Arrays.fill(grid, 0);
+      keys = new long[0];
+      vals = new int[0];
+    } else {
+      int cap = 16;
+      while( cap < covered * 2 ) cap <<= 1;
+      keys = new long[cap];
+      vals = new int[cap];
+      grid = new int[0];
+    }
+    used = 0;
+  }
+
+  /**
+   * The grid has grown or shrunk to ncol x nrow.  Anything outside the
+   * new size must already have been removed.  Returns false if the
+   * index can't follow, and must be reset.
+   */
+  boolean resize(int ncol, int nrow)
+  {
+    if( dense ) {
+      if( ncol > stride ) return false;
+      final long area = (long) stride * nrow;
+      if( area > Math.max(256, live * 4L) || area > Integer.MAX_VALUE )
+        return false;
+      if( area > grid.length )
+        grid = Arrays.copyOf(grid,
+                  (int) Math.min(Integer.MAX_VALUE, Math.max(area, grid.length * 2L)));
+    }
+    this.ncol = ncol;
+    this.nrow = nrow;
+    return true;
+  }
+
+  boolean contains(int col, int row)
+  {
+    return col >= 0 && col < ncol && row >= 0 && row < nrow;
+  }
+
+  /** Return the cell at (col,row), or -1. */
+  int get(int col, int row)
+  {
+    if( !contains(col, row) ) return -1;
+    if( dense ) return grid[row * stride + col] - 1;
+    final long key = key(col, row);
+    final int mask = keys.length - 1;
+    for( int h = hash(key) & mask; vals[h] != 0; h = (h + 1) & mask )
+      if( keys[h] == key && vals[h] > 0 ) return vals[h] - 1;
+    return -1;
+  }
+
+  /** Enter a cell at (col,row), returning the cell it replaced or -1. */
+  int put(int col, int row, int cell)
+  {
+    if( dense ) {
+      final int k = row * stride + col;
+      final int prev = grid[k] - 1;
+      if( prev < 0 ) ++live;
+      grid[k] = cell + 1;
+      return prev;
+    }
+    final long key = key(col, row);
+    final int mask = keys.length - 1;
+    int slot = -1;
+    int h;
+    for( h = hash(key) & mask; vals[h] != 0; h = (h + 1) & mask ) {
+      if( keys[h] == key ) {
+        final int prev = vals[h] - 1;   // -2 if DELETED
+        vals[h] = cell + 1;
+        return prev >= 0 ? prev : -1;
+      }
+      if( vals[h] == DELETED && slot < 0 ) slot = h;
+    }
+    if( slot < 0 ) {
+      slot = h;
+      ++used;
+    }
+    keys[slot] = key;
+    vals[slot] = cell + 1;
+    if( used * 2 > keys.length ) rehash();
+    return -1;
+  }
+
+  /** Remove (col,row) from the index if it holds the given cell. */
+  void remove(int col, int row, int cell)
+  {
+    if( dense ) {
+      final int k = row * stride + col;
+      if( grid[k] == cell + 1 ) {
+        grid[k] = 0;
+        --live;
+      }
+      return;
+    }
+    final long key = key(col, row);
+    final int mask = keys.length - 1;
+    for( int h = hash(key) & mask; vals[h] != 0; h = (h + 1) & mask ) {
+      if( keys[h] == key ) {
+        if( vals[h] == cell + 1 ) vals[h] = DELETED;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Cells have been inserted or removed:  add delta to every cell
+   * number from 'from' up.
+   */
+  void renumber(int from, int delta)
+  {
+    final int[] a = dense ? grid : vals;
+    for( int k = 0; k < a.length; ++k )
+      if( a[k] > from ) a[k] += delta;
+  }
+
+  private void rehash()
+  {
+    final long[] okeys = keys;
+    final int[] ovals = vals;
+    int n = 0;
+    for( int v : ovals ) if( v > 0 ) ++n;
+    int cap = 16;
+    while( cap < n * 4 ) cap <<= 1;
+    keys = new long[cap];
+    vals = new int[cap];
+    used = 0;
+    final int mask = cap - 1;
+    for( int i = 0; i < okeys.length; ++i ) {
+      if( ovals[i] > 0 ) {
+        int h = hash(okeys[i]) & mask;
+        while( vals[h] != 0 ) h = (h + 1) & mask;
+        keys[h] = okeys[i];
+        vals[h] = ovals[i];
+        ++used;
+      }
+    }
+  }
+
+  private static long key(int col, int row)
+  {
+    return ((long) row << 32) | (col & 0xffffffffL);
+  }
+
+  private static int hash(long key)
+  {
+    key *= 0x9E3779B97F4A7C15L;
+    return (int) (key ^ (key >>> 32));
+  }
+}
@@ -0,0 +1,1876 @@
+/**
+ * GridSolver.java - Gridbox geometry engine
+ *
+ * Author: Edward A. Falk
+ *         efalk@users.sourceforge.net
+ *
+ * Date: May 2009
+ *
+ *
+ */
+
+package org.efalk.gridbox.core;
+
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * GridSolver does all of the geometry management for Gridbox, but
+ * knows nothing about Android.  It works from an abstract list of
+ * cells, each of which has:
+ *
+ *      position                gridx, gridy; -1 to have one assigned
+ *      span                    colSpan, rowSpan
+ *      weights                 weightx, weighty
+ *      gravity                 same values as android.view.Gravity
+ *      margins                 left, top, right, bottom
+ *      preferred size          width, height, not including margins
+ *
+ * and from these computes the column widths, row heights, and the
+ * frame (position and size) of every cell.
+ *
+ * Cells are identified by index, 0 ... getCellCount()-1.  Gridbox
+ * uses the child index for this.  Invisible cells take no part in
+ * the layout.
+ *
+ * A full solve goes like this:
+ *
+ *      setCellCount(n)
+ *      setCell(), setCellParams(), setMargins() for each cell
+ *      countCells()                    assign positions, find grid size
+ *      setPreferredSize() for each cell
+ *      computeTrackSizes()             find preferred row/column sizes
+ *      distribute(width, height)       assign actual row/column sizes
+ *      layout(left, top)               assign cell frames
+ *
+ * after which getFrameX() etc. return the results.  See Gridbox for
+ * a description of the layout rules.
+ *
+ * Once countCells() has run, cells may be inserted, removed, moved,
+ * resized, hidden or shown one at a time:  the grid size, the track
+ * maxima and the index are updated for just that cell, and nothing
+ * needs to be counted again.  Use placeCell() to give a new cell a
+ * position the way countCells() would.
+ *
+ * GridSolver also keeps an index from grid coordinates back to cells,
+ * for getCellAt() and findCells().  It's built the first time it's
+ * needed after countCells(), and kept up to date as cells are moved.
+ *
+ * Cells without a position are placed according to setAutoPlacement():
+ * by default each goes just to the right of the previous cell, as it
+ * always has, but they may instead be packed into the first free space
+ * that fits them.  Nothing stops two cells covering the same position;
+ * setStrict() has such cells logged, and getOverlapCount() counts them.
+ *
+ * Row and column sizes may also be declared up front, with
+ * setColumnSizes() and setRowSizes(), instead of coming from the cells.
+ */
+public class GridSolver {
+
+  // Gravity values.  These are the same as the android.view.Gravity
+  // constants so Gridbox can pass them straight through.
+  public static final int NO_GRAVITY = 0x00;
+  public static final int CENTER_HORIZONTAL = 0x01;
+  public static final int LEFT = 0x03;
+  public static final int RIGHT = 0x05;
+  public static final int FILL_HORIZONTAL = 0x07;
+  public static final int HORIZONTAL_GRAVITY_MASK = 0x07;
+  public static final int CENTER_VERTICAL = 0x10;
+  public static final int TOP = 0x30;
+  public static final int BOTTOM = 0x50;
+  public static final int FILL_VERTICAL = 0x70;
+  public static final int VERTICAL_GRAVITY_MASK = 0x70;
+  public static final int CENTER = CENTER_HORIZONTAL | CENTER_VERTICAL;
+  public static final int FILL = FILL_HORIZONTAL | FILL_VERTICAL;
+
+  // Declared track sizes; see setColumnSizes()
+  public static final int TRACK_AUTO = 0;
+  public static final int TRACK_FIXED = 1;
+  public static final int TRACK_FRACTION = 2;
+
+  // Auto-placement; see setAutoPlacement()
+  public static final int PLACE_NEXT = 0;
+  public static final int PLACE_DENSE = 1;
+
+  private static final Logger log = Logger.getLogger("Gridbox");
+
+  private boolean force_uniform_width;
+  private boolean force_uniform_height;
+
+  // Cell constraints, indexed by cell number
+  private int ncells = 0;
+  private boolean[] cell_visible = new boolean[0];
+  private int[] cell_x = new int[0];            // grid position
+  private int[] cell_y = new int[0];
+  private int[] cell_cols = new int[0];         // spans
+  private int[] cell_rows = new int[0];
+  private float[] cell_wx = new float[0];       // weights
+  private float[] cell_wy = new float[0];
+  private int[] cell_gravity = new int[0];
+  private int[] cell_ml = new int[0];           // margins
+  private int[] cell_mt = new int[0];
+  private int[] cell_mr = new int[0];
+  private int[] cell_mb = new int[0];
+  private int[] cell_w = new int[0];            // preferred sizes
+  private int[] cell_h = new int[0];
+
+  // Results: cell frames
+  private int[] frame_x = new int[0];
+  private int[] frame_y = new int[0];
+  private int[] frame_w = new int[0];
+  private int[] frame_h = new int[0];
+
+  // Tracks
+  private int ncol = 0, nrow = 0;       // Size of grid
+  private int[] max_wids = new int[0];  // Maximum widths requested
+  private int[] max_hgts = new int[0];  // Maximum heights requested
+  private int[] nmax_wids = new int[0]; // Cells requesting exactly that
+  private int[] nmax_hgts = new int[0];
+  private int[] wids = new int[0];      // Assigned widths
+  private int[] hgts = new int[0];      // Assigned heights
+  private float[] weightx = new float[0];       // Column weights
+  private float[] weighty = new float[0];       // Row weights
+  private float[] uniform_weights = new float[0];       // distribute() scratch
+  private int[] xs = new int[1];        // Column offsets; xs[ncol] = total
+  private int[] ys = new int[1];        // Row offsets; ys[nrow] = total
+  private int left = 0, top = 0;        // Grid origin
+  private int max_col_span, max_row_span;
+  private int total_wid = 0, total_hgt = 0;
+  private float total_weightx = 0, total_weighty = 0;
+
+  // Visible cells, sorted by column span and by row span.  These are
+  // the shape's after countCellsLike(), until we sort for ourselves.
+  private int[] col_order = new int[0];
+  private int[] row_order = new int[0];
+  private int[] own_col_order = col_order, own_row_order = row_order;
+  private int[] span_count = new int[2];
+  private int nsorted = 0;
+  private boolean need_sort = true;
+  private int nbad = 0;                 // Cells outside the grid
+  private int bad_cols = 0, bad_rows = 0;
+
+  // Which track sizes are out of date.  need_cols means the column
+  // maxima must be recomputed from scratch; cols_changed means they've
+  // been updated (or the width has been changed) since the last
+  // distribute().
+  private boolean need_cols = true, need_rows = true;
+  private boolean cols_changed = true, rows_changed = true;
+  private int dist_width = -1, dist_height = -1;
+
+  // Declared track sizes, null if none.  Tracks past the end of the
+  // list take the last entry.  The maxima of declared tracks aren't
+  // kept up to date as cells change size, since nothing reads them.
+  private int[] col_kinds = null, row_kinds = null;
+  private float[] col_sizes = null, row_sizes = null;
+
+  // Minimum track sizes shared with other grids, null if none; see
+  // setMinColumnWidths().  The caller owns the arrays.  eff_wids and
+  // eff_hgts are the preferred sizes raised to them.
+  private int[] min_wids = null, min_hgts = null;
+  private int nmin_wids, nmin_hgts;
+  private int[] eff_wids = new int[0], eff_hgts = new int[0];
+
+  // Grid size.  After countCells(), col_ends[e] is the number of
+  // placed cells whose last column is e-1, so that ncol can follow
+  // cells as they come and go; row_ends[] likewise.  A cell is placed
+  // if it's visible and has a position.
+  private boolean counted = false;
+  private int[] col_ends = new int[1];
+  private int[] row_ends = new int[1];
+  private int nspanning = 0;            // Placed cells bigger than 1x1
+
+  // Occupancy index.  Likewise the shape's after countCellsLike(),
+  // until it would have to change; see indexLive().
+  private final CellIndex own_index = new CellIndex();
+  private CellIndex index = own_index;
+  private boolean need_index = true;
+  private int overlaps = 0;             // Coordinates covered twice
+  private int[] found = new int[16];    // Results of findCells()
+  private int nfound = 0;
+
+  // Which positions are taken, for PLACE_DENSE and strict mode.  Kept
+  // up to date as cells move unless need_occ.  Every position before
+  // (free_x, free_y), reading across rows auto_cols wide, is taken.
+  private int placement = PLACE_NEXT;
+  private int auto_cols = 0;            // 0: don't wrap
+  private boolean strict = false;
+  private boolean fast_path = true;     // see setFastPath()
+  private final Occupancy occupied = new Occupancy();
+  private boolean need_occ = true;
+  private int nclash = 0;               // Cells placed over others
+  private int free_x = 0, free_y = 0;
+
+
+  public void setForceUniformWidth(boolean uniform) {
+    if( force_uniform_width != uniform ) cols_changed = true;
+    force_uniform_width = uniform;
+  }
+
+  public void setForceUniformHeight(boolean uniform) {
+    if( force_uniform_height != uniform ) rows_changed = true;
+    force_uniform_height = uniform;
+  }
+
+  /**
+   * How cells without a position are placed by countCells() and
+   * placeCell().  With PLACE_NEXT, the default, each goes just to the
+   * right of the previous visible cell.  With PLACE_DENSE, the cells
+   * which have a position are placed first, then the rest fill in the
+   * grid row by row, 'columns' wide, each in the first free space big
+   * enough for it.  Cells with only one coordinate keep it, and take
+   * the first free space in that column or row.  columns <= 0 means
+   * the rows never wrap.
+   */
+  public void setAutoPlacement(int mode, int columns) {
+    placement = mode;
+    auto_cols = Math.max(columns, 0);
+    free_x = free_y = 0;
+  }
+
+  /**
+   * In strict mode, countCells() and cells moving afterwards log any
+   * cell which covers a position another cell already covers.  Of two
+   * overlapping cells, only the one placed second is logged.
+   */
+  public void setStrict(boolean strict) {
+    this.strict = strict;
+  }
+
+  /**
+   * Return the number of placed cells which cover a position some
+   * other cell covers as well:  0 if no cells overlap.  Every cell
+   * involved counts, so two cells in the same place make 2, whatever
+   * order they came in.  Takes time in proportion to the area of the
+   * cells if there are any overlaps.
+   */
+  public int getOverlapCount() {
+    if( need_occ ) buildOccupancy();
+    // nclash counts the cells which landed on earlier ones, so it's
+    // only good for telling whether there are any.
+    if( nclash == 0 ) return 0;
+
+    // Find the positions covered more than once, then the cells
+    // covering any of them.
+    final Occupancy once = new Occupancy(), twice = new Occupancy();
+    for( int i = 0; i < ncells; ++i ) {
+      if( !isPlaced(i) ) continue;
+      final int x = cell_x[i], y = cell_y[i];
+      final int w = cell_cols[i], h = cell_rows[i];
+      if( once.isFree(x, y, w, h) ) {
+        once.mark(x, y, w, h);
+        continue;
+      }
+      for( int r = y; r < y + h; ++r )
+        for( int c = x; c < x + w; ++c )
+          if( !once.mark(c, r, 1, 1) ) twice.mark(c, r, 1, 1);
+    }
+    int n = 0;
+    for( int i = 0; i < ncells; ++i )
+      if( isPlaced(i) &&
+          !twice.isFree(cell_x[i], cell_y[i], cell_cols[i], cell_rows[i]) )
+        ++n;
+    return n;
+  }
+
+  /**
+   * Declare the column widths instead of taking them all from the
+   * cells.  Column t is sized according to kinds[t]:
+   *
+   *      TRACK_AUTO              from the widest cell in it, as usual
+   *      TRACK_FIXED             sizes[t] pixels
+   *      TRACK_FRACTION          a share of the space left over once the
+   *                              other columns are sized, in proportion
+   *                              to sizes[t]
+   *
+   * Columns past the end of the arrays take the last entry.  The cells
+   * in fixed and fractional columns don't affect their widths; see
+   * isDeclared().  Weights only apply to auto columns, and only when
+   * there are no fractional ones, which otherwise get all the excess.
+   * Force_uniform_width is ignored.  Pass null to size every column
+   * from its cells again.
+   */
+  public void setColumnSizes(int[] kinds, float[] sizes) {
+    final boolean none = kinds == null || kinds.length == 0;
+    col_kinds = none ? null : kinds.clone();
+    col_sizes = none ? null : sizes.clone();
+    need_cols = true;
+  }
+
+  /** Declare the row heights; see setColumnSizes(). */
+  public void setRowSizes(int[] kinds, float[] sizes) {
+    final boolean none = kinds == null || kinds.length == 0;
+    row_kinds = none ? null : kinds.clone();
+    row_sizes = none ? null : sizes.clone();
+    need_rows = true;
+  }
+
+  /**
+   * Make the first n columns at least mins[0..n-1] wide, including
+   * margins, as well as wide enough for their cells.  This is how
+   * several grids line their columns up; see getPreferredColumnWidth().
+   * The array isn't copied, so call again after changing it.  Pass
+   * null for no minimums.
+   */
+  public void setMinColumnWidths(int[] mins, int n) {
+    min_wids = mins;
+    nmin_wids = mins == null ? 0 : Math.min(n, mins.length);
+    cols_changed = true;
+  }
+
+  /** Likewise, minimum row heights. */
+  public void setMinRowHeights(int[] mins, int n) {
+    min_hgts = mins;
+    nmin_hgts = mins == null ? 0 : Math.min(n, mins.length);
+    rows_changed = true;
+  }
+
+  /**
+   * Width column col would like to be, from its cells alone:  without
+   * any minimums, declared size, or excess.  Valid after
+   * computeTrackSizes().
+   */
+  public int getPreferredColumnWidth(int col) { return max_wids[col]; }
+
+  /** Likewise, the height row row would like to be. */
+  public int getPreferredRowHeight(int row) { return max_hgts[row]; }
+
+  /**
+   * True if none of the columns or rows cell i covers are sized from
+   * their cells, so that the cell's preferred size only matters for
+   * placing it within its frame.
+   */
+  public boolean isDeclared(int i) {
+    return hasDeclaredWidth(i) && hasDeclaredHeight(i);
+  }
+
+  /**
+   * True if none of the columns cell i covers are sized from their
+   * cells, so that its width can be known before it's measured.
+   */
+  public boolean hasDeclaredWidth(int i) {
+    return isPlaced(i) &&
+      allDeclared(col_kinds, cell_x[i], cell_cols[i]);
+  }
+
+  /** Likewise for the rows cell i covers. */
+  public boolean hasDeclaredHeight(int i) {
+    return isPlaced(i) &&
+      allDeclared(row_kinds, cell_y[i], cell_rows[i]);
+  }
+
+  /**
+   * If all the columns cell i covers have fixed widths, return their
+   * total (including the cell's margins), else -1.
+   */
+  public int getFixedWidth(int i) {
+    return isPlaced(i) ?
+      fixedSize(col_kinds, col_sizes, cell_x[i], cell_cols[i]) : -1;
+  }
+
+  /** Likewise for the rows cell i covers. */
+  public int getFixedHeight(int i) {
+    return isPlaced(i) ?
+      fixedSize(row_kinds, row_sizes, cell_y[i], cell_rows[i]) : -1;
+  }
+
+  /** True if any column takes a fraction of the space left over. */
+  public boolean hasFractionalColumns() {
+    return hasFraction(col_kinds, ncol);
+  }
+
+  /** True if any row takes a fraction of the space left over. */
+  public boolean hasFractionalRows() {
+    return hasFraction(row_kinds, nrow);
+  }
+
+  /**
+   * Make the next computeTrackSizes() and distribute() start from
+   * scratch, as if every cell had changed.
+   */
+  public void invalidateTracks() {
+    need_cols = need_rows = true;
+  }
+
+
+  // Cell constraints
+
+  /**
+   * Set the number of cells.  Existing cells keep their values;
+   * new cells start out visible, at position -1,-1 with span 1x1.
+   */
+  public void setCellCount(int n) {
+    ensureCells(n);
+    for( int i = ncells; i < n; ++i ) initCell(i);
+    ncells = n;
+    counted = false;
+    need_sort = true;
+    need_index = true;
+    need_occ = true;
+    need_cols = need_rows = true;
+  }
+
+  /**
+   * Insert a new cell before cell k, renumbering the ones after it.
+   * The new cell is visible, with no position and span 1x1.  Like
+   * ViewGroup's own child array, this shifts the cells above k.
+   * Constant time when k is the end; otherwise the shift and
+   * renumbering the cell index are linear in the cells and the area.
+   */
+  public void insertCell(int k) {
+    ensureCells(ncells + 1);
+    shiftCells(k, k + 1, ncells - k);
+    ++ncells;
+    initCell(k);
+    if( k < ncells - 1 && indexLive() ) index.renumber(k, 1);
+    need_sort = true;
+  }
+
+  /**
+   * Remove cell k, renumbering the ones after it.  As with
+   * insertCell(), that's only fast for the last cell.
+   */
+  public void removeCell(int k) {
+    if( counted && isPlaced(k) ) leaveGrid(k);
+    shiftCells(k + 1, k, ncells - k - 1);
+    --ncells;
+    if( k < ncells && indexLive() ) index.renumber(k + 1, -1);
+    need_sort = true;
+  }
+
+  /**
+   * If cell i has no position, give it the one countCells() would:
+   * just to the right of the previous visible cell, or with
+   * PLACE_DENSE, in the first free space that fits it.
+   */
+  public void placeCell(int i) {
+    if( cell_x[i] >= 0 && cell_y[i] >= 0 ) return;
+    if( placement == PLACE_DENSE ) {
+      if( !cell_visible[i] ) return;
+      if( need_occ ) buildOccupancy();
+      placeDense(i);
+      if( counted ) enterGrid(i);
+      return;
+    }
+    int x = 0, y = 0;
+    for( int j = i - 1; j >= 0; --j ) {
+      if( isPlaced(j) ) {
+        x = cell_x[j] + cell_cols[j];
+        y = cell_y[j];
+        break;
+      }
+    }
+    setCell(i, cell_x[i] < 0 ? x : cell_x[i], cell_y[i] < 0 ? y : cell_y[i],
+            cell_cols[i], cell_rows[i]);
+  }
+
+  private void ensureCells(int n) {
+    if( n > cell_x.length ) {
+      final int cap = Math.max(n, cell_x.length * 2);
+      cell_visible = Arrays.copyOf(cell_visible, cap);
+      cell_x = Arrays.copyOf(cell_x, cap);
+      cell_y = Arrays.copyOf(cell_y, cap);
+      cell_cols = Arrays.copyOf(cell_cols, cap);
+      cell_rows = Arrays.copyOf(cell_rows, cap);
+      cell_wx = Arrays.copyOf(cell_wx, cap);
+      cell_wy = Arrays.copyOf(cell_wy, cap);
+      cell_gravity = Arrays.copyOf(cell_gravity, cap);
+      cell_ml = Arrays.copyOf(cell_ml, cap);
+      cell_mt = Arrays.copyOf(cell_mt, cap);
+      cell_mr = Arrays.copyOf(cell_mr, cap);
+      cell_mb = Arrays.copyOf(cell_mb, cap);
+      cell_w = Arrays.copyOf(cell_w, cap);
+      cell_h = Arrays.copyOf(cell_h, cap);
+      frame_x = Arrays.copyOf(frame_x, cap);
+      frame_y = Arrays.copyOf(frame_y, cap);
+      frame_w = Arrays.copyOf(frame_w, cap);
+      frame_h = Arrays.copyOf(frame_h, cap);
+      // Callers sort again, so the contents needn't be kept.
+      col_order = own_col_order = new int[cap];
+      row_order = own_row_order = new int[cap];
+    }
+  }
+
+  private void initCell(int i) {
+    cell_visible[i] = true;
+    cell_x[i] = cell_y[i] = -1;
+    cell_cols[i] = cell_rows[i] = 1;
+    cell_wx[i] = cell_wy[i] = 0;
+    cell_gravity[i] = NO_GRAVITY;
+    cell_ml[i] = cell_mt[i] = cell_mr[i] = cell_mb[i] = 0;
+    cell_w[i] = cell_h[i] = 0;
+  }
+
+  // Move n cells from 'from' to 'to'.  Frames move along with them.
+  private void shiftCells(int from, int to, int n) {
+    if( n <= 0 ) return;
+    System.arraycopy(cell_visible, from, cell_visible, to, n);
+    System.arraycopy(cell_x, from, cell_x, to, n);
+    System.arraycopy(cell_y, from, cell_y, to, n);
+    System.arraycopy(cell_cols, from, cell_cols, to, n);
+    System.arraycopy(cell_rows, from, cell_rows, to, n);
+    System.arraycopy(cell_wx, from, cell_wx, to, n);
+    System.arraycopy(cell_wy, from, cell_wy, to, n);
+    System.arraycopy(cell_gravity, from, cell_gravity, to, n);
+    System.arraycopy(cell_ml, from, cell_ml, to, n);
+    System.arraycopy(cell_mt, from, cell_mt, to, n);
+    System.arraycopy(cell_mr, from, cell_mr, to, n);
+    System.arraycopy(cell_mb, from, cell_mb, to, n);
+    System.arraycopy(cell_w, from, cell_w, to, n);
+    System.arraycopy(cell_h, from, cell_h, to, n);
+    System.arraycopy(frame_x, from, frame_x, to, n);
+    System.arraycopy(frame_y, from, frame_y, to, n);
+    System.arraycopy(frame_w, from, frame_w, to, n);
+    System.arraycopy(frame_h, from, frame_h, to, n);
+  }
+
+  public int getCellCount() {
+    return ncells;
+  }
+
+  /**
+   * Set the position and span of a cell.  Either position may be
+   * -1, in which case countCells() or placeCell() will assign it.
+   * Spans less than 1 are taken as 1.
+   */
+  public void setCell(int i, int gridx, int gridy, int colSpan, int rowSpan) {
+    if( colSpan <= 0 ) colSpan = 1;
+    if( rowSpan <= 0 ) rowSpan = 1;
+    if( cell_x[i] == gridx && cell_y[i] == gridy &&
+        cell_cols[i] == colSpan && cell_rows[i] == rowSpan )
+      return;
+    if( counted && isPlaced(i) ) leaveGrid(i);
+    cell_x[i] = gridx;
+    cell_y[i] = gridy;
+    cell_cols[i] = colSpan;
+    cell_rows[i] = rowSpan;
+    if( counted && isPlaced(i) ) enterGrid(i);
+  }
+
+  public void setCellParams(int i, float weightx, float weighty, int gravity) {
+    if( cell_wx[i] != weightx ) need_cols = true;
+    if( cell_wy[i] != weighty ) need_rows = true;
+    cell_wx[i] = weightx;
+    cell_wy[i] = weighty;
+    cell_gravity[i] = gravity;
+  }
+
+  public void setMargins(int i, int left, int top, int right, int bottom) {
+    final int w = cell_w[i] + left + right;
+    final int h = cell_h[i] + top + bottom;
+    resizeCell(i, w, h);
+    cell_ml[i] = left;
+    cell_mt[i] = top;
+    cell_mr[i] = right;
+    cell_mb[i] = bottom;
+  }
+
+  /**
+   * Set the size the cell would like to be, not including margins.
+   * If only a few cells change size, the next computeTrackSizes() only
+   * has to update the rows and columns they're in.
+   */
+  public void setPreferredSize(int i, int width, int height) {
+    resizeCell(i, width + cell_ml[i] + cell_mr[i],
+		  height + cell_mt[i] + cell_mb[i]);
+    cell_w[i] = width;
+    cell_h[i] = height;
+  }
+
+  /**
+   * Invisible cells are ignored for all purposes.
+   */
+  public void setVisible(int i, boolean visible) {
+    if( cell_visible[i] == visible ) return;
+    if( counted && isPlaced(i) ) leaveGrid(i);
+    cell_visible[i] = visible;
+    if( counted && isPlaced(i) ) enterGrid(i);
+  }
+
+  public boolean isVisible(int i) { return cell_visible[i]; }
+  public int getGridx(int i) { return cell_x[i]; }
+  public int getGridy(int i) { return cell_y[i]; }
+  public int getColSpan(int i) { return cell_cols[i]; }
+  public int getRowSpan(int i) { return cell_rows[i]; }
+
+
+  // The solver proper
+
+  /**
+   * Find out how many cells wide and high this grid will be.
+   * Assign grid locations where needed.
+   */
+  public void countCells() {
+    final boolean dense = placement == PLACE_DENSE;
+    final boolean occupy = dense || strict;
+    ncol = nrow = 0;
+    nspanning = 0;
+    if( occupy ) {
+      occupied.clear();
+      nclash = 0;
+      free_x = free_y = 0;
+    }
+    int x = 0, y = 0;
+    for( int i = 0; i < ncells; ++i ) {
+      if( cell_visible[i] ) {
+        if( cell_cols[i] <= 0 ) cell_cols[i] = 1;
+        if( cell_rows[i] <= 0 ) cell_rows[i] = 1;
+        if( dense ) {
+          if( cell_x[i] < 0 || cell_y[i] < 0 ) continue;  // Below
+        } else {
+          if( cell_x[i] < 0 ) cell_x[i] = x;
+          if( cell_y[i] < 0 ) cell_y[i] = y;
+          x = cell_x[i] + cell_cols[i];
+          y = cell_y[i];
+        }
+        countCell(i, occupy);
+      }
+    }
+    if( dense ) {
+      // Now fit the others in around them
+      for( int i = 0; i < ncells; ++i ) {
+        if( cell_visible[i] && (cell_x[i] < 0 || cell_y[i] < 0) ) {
+          placeDense(i);
+          countCell(i, true);
+        }
+      }
+    }
+    need_occ = !occupy;
+    need_sort = true;
+    need_index = true;
+    need_cols = need_rows = true;
+    ensureTracks(ncol, nrow);
+
+    // Where the cells end, for when they start moving
+    if( col_ends.length < ncol + 1 ) col_ends = new int[ncol + 1];
+    else Arrays.fill(col_ends, 0);
+    if( row_ends.length < nrow + 1 ) row_ends = new int[nrow + 1];
+    else Arrays.fill(row_ends, 0);
+    for( int i = 0; i < ncells; ++i ) {
+      if( cell_visible[i] ) {
+        ++col_ends[cell_x[i] + cell_cols[i]];
+        ++row_ends[cell_y[i] + cell_rows[i]];
+      }
+    }
+    counted = true;
+  }
+
+  /**
+   * Count the cells by copying the results from 'shape', a solver
+   * which has counted the same cells and then had prepareShape()
+   * called, such as one kept by a template for all the grids made from
+   * it.  The grid size is copied.  The cells' order by span and the
+   * index are shared with shape, not copied, so they take no time or
+   * memory per grid; this solver only makes its own once its cells
+   * change.  shape must not change while anything shares them.
+   *
+   * Every cell must be visible or not, and placed, exactly as in shape.
+   * If they aren't, if shape hasn't been prepared, or in strict mode,
+   * which has to see each cell land, this does nothing and returns
+   * false; call countCells() instead.
+   */
+  public boolean countCellsLike(GridSolver shape) {
+    if( shape == this || !shape.counted || shape.ncells != ncells ||
+        shape.need_sort || shape.need_index || strict )
+      return false;
+    for( int i = 0; i < ncells; ++i ) {
+      if( cell_visible[i] != shape.cell_visible[i] ) return false;
+      if( cell_visible[i] &&
+          (cell_x[i] != shape.cell_x[i] || cell_y[i] != shape.cell_y[i] ||
+           cell_cols[i] != shape.cell_cols[i] ||
+           cell_rows[i] != shape.cell_rows[i]) )
+        return false;
+    }
+
+    ncol = shape.ncol;
+    nrow = shape.nrow;
+    nspanning = shape.nspanning;
+    if( col_ends.length < ncol + 1 ) col_ends = new int[ncol + 1];
+    System.arraycopy(shape.col_ends, 0, col_ends, 0, ncol + 1);
+    if( row_ends.length < nrow + 1 ) row_ends = new int[nrow + 1];
+    System.arraycopy(shape.row_ends, 0, row_ends, 0, nrow + 1);
+    need_occ = true;
+    need_cols = need_rows = true;
+    ensureTracks(ncol, nrow);
+
+    max_col_span = shape.max_col_span;
+    max_row_span = shape.max_row_span;
+    nsorted = shape.nsorted;
+    col_order = shape.col_order;
+    row_order = shape.row_order;
+    need_sort = false;
+
+    index = shape.index;
+    overlaps = shape.overlaps;
+    need_index = false;
+    counted = true;
+    return true;
+  }
+
+  /**
+   * Work out the cells' order by span and the index now, rather than
+   * when they're first needed, so that this solver can be the shape
+   * for countCellsLike() without changing as it's used.  Call after
+   * countCells().
+   */
+  public void prepareShape() {
+    if( need_sort ) sortBySpan();
+    if( need_index ) buildIndex();
+  }
+
+  // Add placed cell i to the grid size, and to the occupancy map
+  private void countCell(int i, boolean occupy)
+  {
+    final int xe = cell_x[i] + cell_cols[i], ye = cell_y[i] + cell_rows[i];
+    if( xe > ncol ) ncol = xe;
+    if( ye > nrow ) nrow = ye;
+    if( cell_cols[i] != 1 || cell_rows[i] != 1 ) ++nspanning;
+    if( occupy &&
+        !occupied.mark(cell_x[i], cell_y[i], cell_cols[i], cell_rows[i]) )
+      clash(i);
+  }
+
+  // Cell i has landed on another one
+  private void clash(int i)
+  {
+    ++nclash;
+    if( strict )
+      log.warning("cell " + i + " at " + cell_x[i] + "," + cell_y[i] +
+                  " overlaps another cell");
+  }
+
+  /**
+   * Find a position for cell i, which lacks one or both coordinates,
+   * in the first free space that fits it.  The occupancy map must be
+   * up to date; the cell isn't marked in it.
+   */
+  private void placeDense(int i)
+  {
+    final int w = cell_cols[i], h = cell_rows[i];
+    final int wrap = auto_cols > 0 ? auto_cols : Integer.MAX_VALUE;
+
+    // Move the free pointer past whatever has been taken since.  It
+    // only moves forward, so filling a grid of single cells is O(1)
+    // per cell.
+    for(;;) {
+      free_x = occupied.nextFree(free_y, free_x);
+      if( free_x < wrap ) break;
+      free_x = 0;
+      ++free_y;
+    }
+
+    int x = cell_x[i], y = cell_y[i];
+    if( x >= 0 ) {
+      // Fixed column; rows before free_y are full there if it's
+      // within the wrapping width.
+      for( y = x < wrap ? free_y : 0; !occupied.isFree(x, y, w, h); ++y );
+    } else {
+      // Scan across from the free pointer, or along the given row.
+      // Spans wider than the grid start in column 0.
+      final int width = y >= 0 ? Integer.MAX_VALUE : Math.max(wrap, w);
+      if( y < 0 ) {
+        y = free_y;
+        x = free_x;
+      } else {
+        x = y < free_y ? wrap : y == free_y ? free_x : 0;
+      }
+      for(;;) {
+        x = occupied.nextFree(y, x);
+        if( x > width - w ) {
+          x = 0;
+          ++y;
+          continue;
+        }
+        int r;
+        int taken = Integer.MAX_VALUE;
+        for( r = y; r < y + h; ++r ) {
+          taken = occupied.nextSet(r, x);
+          if( taken < x + w ) break;
+        }
+        if( r == y + h ) break;
+        x = taken + 1;
+      }
+    }
+    cell_x[i] = x;
+    cell_y[i] = y;
+  }
+
+  // Rebuild the occupancy map from the placed cells
+  private void buildOccupancy()
+  {
+    buildOccupancy(-1);
+  }
+
+  // Likewise, leaving out cell 'skip'
+  private void buildOccupancy(int skip)
+  {
+    occupied.clear();
+    nclash = 0;
+    free_x = free_y = 0;
+    for( int i = 0; i < ncells; ++i )
+      if( i != skip && isPlaced(i) &&
+          !occupied.mark(cell_x[i], cell_y[i], cell_cols[i], cell_rows[i]) )
+        ++nclash;
+    // Only cells moving after countCells() keep it up to date
+    need_occ = !counted;
+  }
+
+  public int getColumnCount() { return ncol; }
+  public int getRowCount() { return nrow; }
+
+  /**
+   * True if the grid has been counted and every cell in it is 1x1.
+   * Such grids are sized in a single pass over the cells, without
+   * the span machinery.
+   */
+  public boolean isRegular() { return counted && nspanning == 0; }
+
+  /**
+   * If fast is false, regular grids are sized the same way as grids
+   * with spans, instead of in the single pass.  The answer is the same
+   * either way; this is for tests and benchmarks to compare the two.
+   * Default true.
+   */
+  public void setFastPath(boolean fast) {
+    if( fast == fast_path ) return;
+    fast_path = fast;
+    need_cols = need_rows = true;
+  }
+
+  /**
+   * Return the visible cell which covers (col,row), or -1 if there
+   * is none.  If more than one does, returns the last one.
+   */
+  public int getCellAt(int col, int row) {
+    if( need_index ) buildIndex();
+    return index.get(col, row);
+  }
+
+  /**
+   * Find all the visible cells which overlap columns col0-col1 and
+   * rows row0-row1, inclusive.  Returns the number found; use
+   * getFoundCell() to get them.  The order is unspecified unless
+   * some cells overlap, in which case they come back in cell order.
+   */
+  public int findCells(int col0, int row0, int col1, int row1) {
+    if( need_index ) buildIndex();
+    col0 = Math.max(col0, 0);
+    row0 = Math.max(row0, 0);
+    col1 = Math.min(col1, ncol - 1);
+    row1 = Math.min(row1, nrow - 1);
+    nfound = 0;
+    if( col0 > col1 || row0 > row1 ) return 0;
+
+    final long area = (long) (col1 - col0 + 1) * (row1 - row0 + 1);
+    if( overlaps > 0 || area > ncells ) {
+      // Cheaper (or, with overlaps, only correct) to check every cell.
+      for( int i = 0; i < ncells; ++i ) {
+        final int x = cell_x[i], y = cell_y[i];
+        if( cell_visible[i] && x >= 0 && y >= 0 &&
+            x + cell_cols[i] <= ncol && y + cell_rows[i] <= nrow &&
+            x <= col1 && x + cell_cols[i] > col0 &&
+            y <= row1 && y + cell_rows[i] > row0 )
+          addFound(i);
+      }
+    } else {
+      // Walk the range.  A spanning cell is reported at the first
+      // of its coordinates inside the range.
+      for( int r = row0; r <= row1; ++r ) {
+        for( int c = col0; c <= col1; ++c ) {
+          final int i = index.get(c, r);
+          if( i >= 0 && c == Math.max(cell_x[i], col0) &&
+              r == Math.max(cell_y[i], row0) )
+            addFound(i);
+        }
+      }
+    }
+    return nfound;
+  }
+
+  public int getFoundCell(int k) { return found[k]; }
+
+  /**
+   * Compute the preferred size of each row and column from the
+   * preferred sizes, margins and weights of the cells.  Afterwards,
+   * getPreferredWidth() etc. return the totals.
+   *
+   * Each track remembers how many cells ask for its maximum size, so
+   * a cell changing size can usually be applied to its own row and
+   * column on the spot (see resizeCell()).  The full pass below only
+   * runs for an axis when that isn't enough:  the grid changed, a
+   * weight changed, or a track lost the last cell holding its maximum.
+   */
+  public void computeTrackSizes() {
+    int i, j;
+
+    // This may generate a non-optimum answer if large cells
+    // partially overlap.
+
+    // Find maximum column and row sizes.  Cells are taken in order
+    // of increasing span, so that a spanning cell sees the sizes of
+    // all the narrower cells it covers.  If there are no spans, order
+    // doesn't matter, and one pass does both axes.
+    final boolean regular = fast_path && isRegular();
+    if( (need_cols || need_rows) && need_sort && !regular ) sortBySpan();
+    if( regular && (need_cols || need_rows) ) regularPass();
+    if( need_cols )
+    {
+      Arrays.fill(max_wids, 0);
+      Arrays.fill(nmax_wids, 0);
+      Arrays.fill(weightx, 0);
+      bad_cols = 0;
+      for( j = 0; j < nsorted; ++j )
+      {
+        i = col_order[j];
+        final int w = cell_w[i] + cell_ml[i] + cell_mr[i];
+        if( !computeWidHgtUtil(cell_x[i], cell_cols[i], w, cell_wx[i],
+                            max_wids, nmax_wids, weightx) ) ++bad_cols;
+      }
+      total_wid = 0;
+      total_weightx = 0;
+      for(i=0; i < ncol; ++i) {
+        total_wid += max_wids[i];
+        total_weightx += weightx[i];
+      }
+      need_cols = false;
+      cols_changed = true;
+    }
+    if( need_rows )
+    {
+      Arrays.fill(max_hgts, 0);
+      Arrays.fill(nmax_hgts, 0);
+      Arrays.fill(weighty, 0);
+      bad_rows = 0;
+      for( j = 0; j < nsorted; ++j )
+      {
+        i = row_order[j];
+        final int h = cell_h[i] + cell_mt[i] + cell_mb[i];
+        if( !computeWidHgtUtil(cell_y[i], cell_rows[i], h, cell_wy[i],
+                            max_hgts, nmax_hgts, weighty) ) ++bad_rows;
+      }
+      total_hgt = 0;
+      total_weighty = 0;
+      for(i=0; i < nrow; ++i) {
+        total_hgt += max_hgts[i];
+        total_weighty += weighty[i];
+      }
+      need_rows = false;
+      rows_changed = true;
+    }
+
+    // Complain once, not on every pass.
+    final int bad = bad_cols + bad_rows;
+    if( bad != nbad ) {
+      nbad = bad;
+      if( bad > 0 )
+        log.severe("computeTrackSizes: " + bad +
+          " cells lie outside the " + ncol + "x" + nrow + " grid");
+    }
+  }
+
+  /**
+   * computeTrackSizes() for a grid of 1x1 cells:  one loop over the
+   * cells, straight into their column and row, for whichever axes
+   * need it.  Leaves the totals computed and need_cols/need_rows clear.
+   */
+  private void regularPass()
+  {
+    final boolean cols = need_cols, rows = need_rows;
+    if( cols ) {
+      Arrays.fill(max_wids, 0);
+      Arrays.fill(nmax_wids, 0);
+      Arrays.fill(weightx, 0);
+      bad_cols = 0;
+    }
+    if( rows ) {
+      Arrays.fill(max_hgts, 0);
+      Arrays.fill(nmax_hgts, 0);
+      Arrays.fill(weighty, 0);
+      bad_rows = 0;
+    }
+    for( int i = 0; i < ncells; ++i ) {
+      if( !cell_visible[i] ) continue;
+      final int x = cell_x[i], y = cell_y[i];
+      if( x < 0 || y < 0 ) {
+        // Not placed, so not counted as spanning either; take the
+        // long way round.
+        if( cols && !computeWidHgtUtil(x, cell_cols[i],
+                  cell_w[i] + cell_ml[i] + cell_mr[i], cell_wx[i],
+                  max_wids, nmax_wids, weightx) ) ++bad_cols;
+        if( rows && !computeWidHgtUtil(y, cell_rows[i],
+                  cell_h[i] + cell_mt[i] + cell_mb[i], cell_wy[i],
+                  max_hgts, nmax_hgts, weighty) ) ++bad_rows;
+        continue;
+      }
+      if( cols ) {
+        final int w = cell_w[i] + cell_ml[i] + cell_mr[i];
+        if( w > max_wids[x] ) {
+          max_wids[x] = w;
+          nmax_wids[x] = 1;
+        }
+        else if( w == max_wids[x] ) ++nmax_wids[x];
+        if( weightx[x] < cell_wx[i] ) weightx[x] = cell_wx[i];
+      }
+      if( rows ) {
+        final int h = cell_h[i] + cell_mt[i] + cell_mb[i];
+        if( h > max_hgts[y] ) {
+          max_hgts[y] = h;
+          nmax_hgts[y] = 1;
+        }
+        else if( h == max_hgts[y] ) ++nmax_hgts[y];
+        if( weighty[y] < cell_wy[i] ) weighty[y] = cell_wy[i];
+      }
+    }
+    if( cols ) {
+      total_wid = 0;
+      total_weightx = 0;
+      for( int t = 0; t < ncol; ++t ) {
+        total_wid += max_wids[t];
+        total_weightx += weightx[t];
+      }
+      need_cols = false;
+      cols_changed = true;
+    }
+    if( rows ) {
+      total_hgt = 0;
+      total_weighty = 0;
+      for( int t = 0; t < nrow; ++t ) {
+        total_hgt += max_hgts[t];
+        total_weighty += weighty[t];
+      }
+      need_rows = false;
+      rows_changed = true;
+    }
+  }
+
+  /** Sum of the preferred column widths. */
+  public int getPreferredWidth() {
+    final int[] pref = colSizes();
+    return col_kinds != null ?
+      declaredTotal(col_kinds, col_sizes, pref, ncol) :
+      pref == max_wids ? total_wid : sum(pref, ncol);
+  }
+
+  /** Sum of the preferred row heights. */
+  public int getPreferredHeight() {
+    final int[] pref = rowSizes();
+    return row_kinds != null ?
+      declaredTotal(row_kinds, row_sizes, pref, nrow) :
+      pref == max_hgts ? total_hgt : sum(pref, nrow);
+  }
+
+  // The preferred column widths, raised to any minimums
+  private int[] colSizes() {
+    if( min_wids == null ) return max_wids;
+    if( eff_wids.length != max_wids.length )
+      eff_wids = new int[max_wids.length];
+    floor(max_wids, ncol, min_wids, nmin_wids, eff_wids);
+    return eff_wids;
+  }
+
+  private int[] rowSizes() {
+    if( min_hgts == null ) return max_hgts;
+    if( eff_hgts.length != max_hgts.length )
+      eff_hgts = new int[max_hgts.length];
+    floor(max_hgts, nrow, min_hgts, nmin_hgts, eff_hgts);
+    return eff_hgts;
+  }
+
+  public float getTotalWeightx() { return total_weightx; }
+  public float getTotalWeighty() { return total_weighty; }
+
+  /**
+   * Given the actual size available to the grid (not including
+   * padding), assign the column widths and row heights, distributing
+   * any excess space by weight.
+   */
+  public void distribute(int width, int height) {
+    distributeWidth(width);
+    distributeHeight(height);
+  }
+
+  /**
+   * distribute() for the columns alone.  Where a cell's height depends
+   * on its width, this lets the columns be settled first.
+   */
+  public void distributeWidth(int width) {
+    // An axis whose tracks and size haven't changed keeps its sizes.
+    if( cols_changed || width != dist_width ) {
+      final int[] pref = colSizes();
+      if( col_kinds != null )
+        distributeDeclared(ncol, width, col_kinds, col_sizes,
+                            pref, weightx, wids);
+      else {
+        System.arraycopy(pref, 0, wids, 0, wids.length);
+        distributeExcess(ncol, width, wids,
+                          pref == max_wids ? total_wid : sum(pref, ncol),
+                          weightx, total_weightx, force_uniform_width);
+      }
+      // Running sums, so that any span of cells can be measured
+      // with one subtraction.
+      prefixSums(wids, ncol, xs);
+      dist_width = width;
+      cols_changed = false;
+    }
+  }
+
+  /** distribute() for the rows alone. */
+  public void distributeHeight(int height) {
+    if( rows_changed || height != dist_height ) {
+      final int[] pref = rowSizes();
+      if( row_kinds != null )
+        distributeDeclared(nrow, height, row_kinds, row_sizes,
+                            pref, weighty, hgts);
+      else {
+        System.arraycopy(pref, 0, hgts, 0, hgts.length);
+        distributeExcess(nrow, height, hgts,
+                          pref == max_hgts ? total_hgt : sum(pref, nrow),
+                          weighty, total_weighty, force_uniform_height);
+      }
+      prefixSums(hgts, nrow, ys);
+      dist_height = height;
+      rows_changed = false;
+    }
+  }
+
+  public int getColumnWidth(int col) { return wids[col]; }
+  public int getRowHeight(int row) { return hgts[row]; }
+
+  /** Sum of the assigned column widths. */
+  public int getGridWidth() { return xs[ncol]; }
+  /** Sum of the assigned row heights. */
+  public int getGridHeight() { return ys[nrow]; }
+
+  /**
+   * Return the current width of the cell(s) occupied by a cell,
+   * including its margins.
+   */
+  public int getCellWidth(int i)
+  {
+    return xs[cell_x[i] + cell_cols[i]] - xs[cell_x[i]];
+  }
+
+  /**
+   * Return the current height of the cell(s) occupied by a cell,
+   * including its margins.
+   */
+  public int getCellHeight(int i)
+  {
+    return ys[cell_y[i] + cell_rows[i]] - ys[cell_y[i]];
+  }
+
+  /**
+   * Place the grid with its top-left corner at (left,top), and
+   * compute the frame of every visible cell.
+   */
+  public void layout(int left, int top)
+  {
+    setOrigin(left, top);
+
+    for( int i = 0; i < ncells; ++i ) {
+      if( cell_visible[i] ) {
+        layoutCell(i);
+      }
+    }
+  }
+
+  /**
+   * Place the grid with its top-left corner at (left,top) without
+   * computing any frames.  Use layoutCell() to compute just the
+   * frames you need.
+   */
+  public void setOrigin(int left, int top)
+  {
+    this.left = left;
+    this.top = top;
+  }
+
+  public int getColumnX(int col) { return left + xs[col]; }
+  public int getRowY(int row) { return top + ys[row]; }
+
+  /**
+   * Return the column containing x.  Returns -1 if x is left of the
+   * grid, and getColumnCount() if it is right of it.
+   */
+  public int findColumn(int x) { return findTrack(xs, ncol, x - left); }
+
+  /**
+   * Return the row containing y.  Returns -1 if y is above the
+   * grid, and getRowCount() if it is below it.
+   */
+  public int findRow(int y) { return findTrack(ys, nrow, y - top); }
+
+  public int getFrameX(int i) { return frame_x[i]; }
+  public int getFrameY(int i) { return frame_y[i]; }
+  public int getFrameWidth(int i) { return frame_w[i]; }
+  public int getFrameHeight(int i) { return frame_h[i]; }
+
+
+        // PRIVATE ROUTINES
+
+
+  /**
+   * Cell i's size including margins is changing to w x h.  Apply that
+   * to the maxima of its column and row if possible, else mark the
+   * axis for a full pass.  Only single-span cells set track sizes;
+   * spanning cells just contribute weight.
+   */
+  private void resizeCell(int i, int w, int h)
+  {
+    if( !counted || !isPlaced(i) ) return;
+    final int ow = cell_w[i] + cell_ml[i] + cell_mr[i];
+    final int oh = cell_h[i] + cell_mt[i] + cell_mb[i];
+    if( w != ow && !need_cols && cell_cols[i] == 1 ) {
+      final int x = cell_x[i];
+      if( x >= 0 && x < ncol && trackKind(col_kinds, x) == TRACK_AUTO ) {
+        final int d = resizeTrack(x, ow, w, max_wids, nmax_wids);
+        if( d == Integer.MIN_VALUE ) need_cols = true;
+        else if( d != 0 ) {
+          total_wid += d;
+          cols_changed = true;
+        }
+      }
+    }
+    if( h != oh && !need_rows && cell_rows[i] == 1 ) {
+      final int y = cell_y[i];
+      if( y >= 0 && y < nrow && trackKind(row_kinds, y) == TRACK_AUTO ) {
+        final int d = resizeTrack(y, oh, h, max_hgts, nmax_hgts);
+        if( d == Integer.MIN_VALUE ) need_rows = true;
+        else if( d != 0 ) {
+          total_hgt += d;
+          rows_changed = true;
+        }
+      }
+    }
+  }
+
+  /**
+   * One of the cells in track t changes its size from old to size.
+   * Returns how much the track's maximum grew, or MIN_VALUE if it
+   * shrank, in which case only a full pass can find the new maximum.
+   */
+  private static int
+  resizeTrack(int t, int old, int size, int[] max, int[] nmax)
+  {
+    final int m = max[t];
+    if( size > m ) {
+      max[t] = size;
+      nmax[t] = 1;
+      return size - m;
+    }
+    if( size == m ) ++nmax[t];
+    if( old == m && --nmax[t] == 0 ) return Integer.MIN_VALUE;
+    return 0;
+  }
+
+  private boolean isPlaced(int i)
+  {
+    return cell_visible[i] && cell_x[i] >= 0 && cell_y[i] >= 0;
+  }
+
+  /**
+   * Placed cell i has just appeared.  Grow the grid if it lies outside,
+   * and add it to the track maxima and the index.
+   */
+  private void enterGrid(int i)
+  {
+    final int x = cell_x[i], y = cell_y[i];
+    final int xe = x + cell_cols[i], ye = y + cell_rows[i];
+    if( xe >= col_ends.length )
+      col_ends = Arrays.copyOf(col_ends, Math.max(xe + 1, col_ends.length * 2));
+    if( ye >= row_ends.length )
+      row_ends = Arrays.copyOf(row_ends, Math.max(ye + 1, row_ends.length * 2));
+    ++col_ends[xe];
+    ++row_ends[ye];
+    if( cell_cols[i] != 1 || cell_rows[i] != 1 ) ++nspanning;
+    if( xe > ncol || ye > nrow ) {
+      final int oc = ncol, or = nrow;
+      ensureTracks(Math.max(xe, ncol), Math.max(ye, nrow));
+      for( int t = oc; t < xe; ++t ) {
+        max_wids[t] = nmax_wids[t] = 0;
+        weightx[t] = 0;
+      }
+      for( int t = or; t < ye; ++t ) {
+        max_hgts[t] = nmax_hgts[t] = 0;
+        weighty[t] = 0;
+      }
+      if( xe > ncol ) {
+        ncol = xe;
+        cols_changed = true;
+      }
+      if( ye > nrow ) {
+        nrow = ye;
+        rows_changed = true;
+      }
+      if( indexLive() && !index.resize(ncol, nrow) ) need_index = true;
+    }
+    need_sort = true;
+    // Strict mode has to see what this cell lands on, even if the
+    // map was dropped when an overlapping cell left.
+    if( need_occ && strict ) buildOccupancy(i);
+    if( !need_occ && !occupied.mark(x, y, cell_cols[i], cell_rows[i]) )
+      clash(i);
+
+    if( !need_cols ) {
+      if( cell_cols[i] == 1 ) {
+        // -1: not one of the cells already in the track
+        final int w = cell_w[i] + cell_ml[i] + cell_mr[i];
+        final int d = resizeTrack(x, -1, w, max_wids, nmax_wids);
+        if( d != 0 ) {
+          total_wid += d;
+          cols_changed = true;
+        }
+      }
+      final float wx = cell_wx[i];
+      for( int t = x; t < xe; ++t ) {
+        if( weightx[t] < wx ) {
+          total_weightx += wx - weightx[t];
+          weightx[t] = wx;
+          cols_changed = true;
+        }
+      }
+    }
+    if( !need_rows ) {
+      if( cell_rows[i] == 1 ) {
+        final int h = cell_h[i] + cell_mt[i] + cell_mb[i];
+        final int d = resizeTrack(y, -1, h, max_hgts, nmax_hgts);
+        if( d != 0 ) {
+          total_hgt += d;
+          rows_changed = true;
+        }
+      }
+      final float wy = cell_wy[i];
+      for( int t = y; t < ye; ++t ) {
+        if( weighty[t] < wy ) {
+          total_weighty += wy - weighty[t];
+          weighty[t] = wy;
+          rows_changed = true;
+        }
+      }
+    }
+
+    indexCell(i);
+  }
+
+  /**
+   * Placed cell i is about to disappear.  Take it out of the index
+   * and the track maxima, and shrink the grid if it was the last cell
+   * in the outermost column or row.
+   */
+  private void leaveGrid(int i)
+  {
+    unindexCell(i);
+
+    final int x = cell_x[i], y = cell_y[i];
+    final int xe = x + cell_cols[i], ye = y + cell_rows[i];
+    if( !need_occ ) {
+      // If any cells overlap, this one's positions may still be taken
+      if( nclash > 0 ) need_occ = true;
+      else {
+        occupied.unmark(x, y, cell_cols[i], cell_rows[i]);
+        if( y < free_y || (y == free_y && x < free_x) ) {
+          free_x = x;
+          free_y = y;
+        }
+      }
+    }
+    if( !need_cols ) {
+      if( cell_cols[i] == 1 ) {
+        final int w = cell_w[i] + cell_ml[i] + cell_mr[i];
+        if( resizeTrack(x, w, -1, max_wids, nmax_wids) != 0 ) need_cols = true;
+      }
+      // Track weights have no counts; if this cell might have been
+      // setting one, start over.
+      final float wx = cell_wx[i];
+      for( int t = x; t < xe && !need_cols; ++t )
+        if( wx > 0 && weightx[t] <= wx ) need_cols = true;
+    }
+    if( !need_rows ) {
+      if( cell_rows[i] == 1 ) {
+        final int h = cell_h[i] + cell_mt[i] + cell_mb[i];
+        if( resizeTrack(y, h, -1, max_hgts, nmax_hgts) != 0 ) need_rows = true;
+      }
+      final float wy = cell_wy[i];
+      for( int t = y; t < ye && !need_rows; ++t )
+        if( wy > 0 && weighty[t] <= wy ) need_rows = true;
+    }
+    need_sort = true;
+
+    --col_ends[xe];
+    --row_ends[ye];
+    if( cell_cols[i] != 1 || cell_rows[i] != 1 ) --nspanning;
+    if( xe == ncol || ye == nrow ) {
+      final int oc = ncol, or = nrow;
+      while( ncol > 0 && col_ends[ncol] == 0 ) --ncol;
+      while( nrow > 0 && row_ends[nrow] == 0 ) --nrow;
+      if( ncol != oc ) cols_changed = true;
+      if( nrow != or ) rows_changed = true;
+      if( (ncol != oc || nrow != or) && indexLive() &&
+          !index.resize(ncol, nrow) )
+        need_index = true;
+    }
+  }
+
+  // Make sure there's room for ncol x nrow tracks.
+  private void ensureTracks(int ncol, int nrow)
+  {
+    if( max_wids.length < ncol ) {
+      final int cap = Math.max(ncol, max_wids.length * 3 / 2);
+      max_wids = Arrays.copyOf(max_wids, cap);
+      nmax_wids = Arrays.copyOf(nmax_wids, cap);
+      wids = Arrays.copyOf(wids, cap);
+      weightx = Arrays.copyOf(weightx, cap);
+      xs = new int[cap+1];
+    }
+    if( max_hgts.length < nrow ) {
+      final int cap = Math.max(nrow, max_hgts.length * 3 / 2);
+      max_hgts = Arrays.copyOf(max_hgts, cap);
+      nmax_hgts = Arrays.copyOf(nmax_hgts, cap);
+      hgts = Arrays.copyOf(hgts, cap);
+      weighty = Arrays.copyOf(weighty, cap);
+      ys = new int[cap+1];
+    }
+    if( uniform_weights.length < Math.max(ncol, nrow) )
+      uniform_weights = new float[Math.max(max_wids.length, max_hgts.length)];
+  }
+
+  private void addFound(int i)
+  {
+    if( nfound >= found.length ) found = Arrays.copyOf(found, nfound * 2);
+    found[nfound++] = i;
+  }
+
+  private void buildIndex()
+  {
+    long covered = 0;
+    for( int i = 0; i < ncells; ++i )
+      if( cell_visible[i] && cell_cols[i] > 0 && cell_rows[i] > 0 )
+        covered += (long) cell_cols[i] * cell_rows[i];
+    index = own_index;
+    index.reset(ncol, nrow, covered);
+    overlaps = 0;
+    // Cells outside the grid can't be entered; they are ignored.
+    for( int i = 0; i < ncells; ++i )
+      if( cell_visible[i] ) enterCell(i);
+    need_index = false;
+  }
+
+  /*
+   * Can the index be updated in place?  Not if it's to be rebuilt
+   * anyway, nor if it's the shape's (see countCellsLike()); in that
+   * case it's rebuilt as our own.
+   */
+  private boolean indexLive()
+  {
+    if( index != own_index ) {
+      index = own_index;
+      need_index = true;
+    }
+    return !need_index;
+  }
+
+  // Keep the index up to date after cell i has moved or appeared.
+  private void indexCell(int i)
+  {
+    if( !indexLive() ) return;
+    final int before = overlaps;
+    if( !enterCell(i) ) {
+      // Not placed yet, or the grid needs to grow.
+      need_index = true;
+    } else if( overlaps != before ) {
+      // The index must hold the last of the overlapping cells, in
+      // cell order, which only a rebuild can be sure of.
+      need_index = true;
+    }
+  }
+
+  // Enter cell i into the index at every coordinate it covers.
+  // Returns false if it doesn't lie within the grid.
+  private boolean enterCell(int i)
+  {
+    final int x = cell_x[i], y = cell_y[i];
+    final int x1 = x + cell_cols[i] - 1, y1 = y + cell_rows[i] - 1;
+    if( !index.contains(x, y) || !index.contains(x1, y1) ) return false;
+    for( int r = y; r <= y1; ++r ) {
+      for( int c = x; c <= x1; ++c ) {
+        final int prev = index.put(c, r, i);
+        if( prev >= 0 && prev != i ) ++overlaps;
+      }
+    }
+    return true;
+  }
+
+  // Remove cell i from the index.
+  private void unindexCell(int i)
+  {
+    if( !indexLive() ) return;
+    if( overlaps > 0 ) {
+      // Removing it might uncover some other cell.
+      need_index = true;
+      return;
+    }
+    final int x = cell_x[i], y = cell_y[i];
+    final int x1 = x + cell_cols[i] - 1, y1 = y + cell_rows[i] - 1;
+    if( !index.contains(x, y) || !index.contains(x1, y1) ) return;
+    for( int r = y; r <= y1; ++r )
+      for( int c = x; c <= x1; ++c )
+        index.remove(c, r, i);
+  }
+
+  /**
+   * Sort the visible cells by column span into col_order[], and by
+   * row span into row_order[].  This is a counting sort, and it is
+   * stable, so cells of the same span stay in cell order.
+   */
+  private void sortBySpan()
+  {
+    int i;
+    max_col_span = max_row_span = 0;
+    nsorted = 0;
+    for( i = 0; i < ncells; ++i ) {
+      if( cell_visible[i] && cell_cols[i] > 0 && cell_rows[i] > 0 ) {
+        if( cell_cols[i] > max_col_span ) max_col_span = cell_cols[i];
+        if( cell_rows[i] > max_row_span ) max_row_span = cell_rows[i];
+        ++nsorted;
+      }
+    }
+    final int maxspan = Math.max(max_col_span, max_row_span);
+    if( span_count.length < maxspan + 1 ) span_count = new int[maxspan + 1];
+    col_order = own_col_order;
+    row_order = own_row_order;
+    countingSort(cell_cols, max_col_span, col_order);
+    countingSort(cell_rows, max_row_span, row_order);
+    need_sort = false;
+  }
+
+  private void countingSort(int[] spans, int maxspan, int[] order)
+  {
+    int i, j;
+    Arrays.fill(span_count, 0, maxspan + 1, 0);
+    for( i = 0; i < ncells; ++i )
+      if( cell_visible[i] && cell_cols[i] > 0 && cell_rows[i] > 0 )
+        ++span_count[spans[i]];
+
+    // Convert counts to starting positions
+    int pos = 0;
+    for( j = 1; j <= maxspan; ++j ) {
+      final int n = span_count[j];
+      span_count[j] = pos;
+      pos += n;
+    }
+
+    for( i = 0; i < ncells; ++i )
+      if( cell_visible[i] && cell_cols[i] > 0 && cell_rows[i] > 0 )
+        order[span_count[spans[i]]++] = i;
+  }
+
+
+  // Binary search of a prefix-sum array for the track containing pos.
+  private static int findTrack(int[] offsets, int n, int pos)
+  {
+    if( pos < 0 ) return -1;
+    if( pos >= offsets[n] ) return n;
+    int lo = 0, hi = n - 1;
+    while( lo < hi ) {
+      final int mid = (lo + hi + 1) >>> 1;
+      if( offsets[mid] <= pos ) lo = mid;
+      else hi = mid - 1;
+    }
+    return lo;
+  }
+
+  // sums[i] = sizes[0] + ... + sizes[i-1]
+  private static void prefixSums(int[] sizes, int n, int[] sums)
+  {
+    int total = 0;
+    for(int i=0; i<n; ++i) {
+      sums[i] = total;
+      total += sizes[i];
+    }
+    sums[n] = total;
+  }
+
+
+  // Utility: adjust size and weight arrays based on the location, size and
+  // weight of the specified cell.  Returns false if the cell doesn't fit.
+  private static boolean
+  computeWidHgtUtil(int idx, int ncell, int wid, float weight,
+    int[] wids, int[] nmax, float[] weights)
+  {
+    // 1 set the specified column weight(s) to the max of their current
+    //   value and the weight of this widget.
+    //
+    // 2 find out if the available space in the indicated column(s)
+    //   is enough to satisfy this widget.  If not, distribute the
+    //   excess size by column weights.
+    //
+    //   The excess may not divide evenly into the number of cells.
+    //   The remainder will also be distributed evenly to some of the
+    //   cells.  Make a Bresenham walk to do this.
+
+    if( idx < 0 || idx + ncell > wids.length ) {
+      return false;
+    }
+
+    if( ncell == 1 )            // simple case
+    {
+      if( weights[idx] < weight ) weights[idx] = weight;
+      if( wids[idx] < wid ) {
+        wids[idx] = wid;
+        nmax[idx] = 1;
+      }
+      else if( wids[idx] == wid ) ++nmax[idx];
+      return true;
+    }
+
+/*
+    Puzzle:  imagine all single-cells are 4 pixels wide.  Imagine that
+    there are some double-cells which are 16 pixels wide.  Arranged like
+    this:
+
+    naive (allocate excess size of double-wides evenly to columns):
+          ....  ####    ....
+          ####  ................
+        ................  ####
+
+    ideal:
+        ....    ####    ....
+        ####................
+        ................####
+
+    How can we achive the ideal layout?
+*/
+
+    // Conditionally assign weight to columns.
+    for( int i=0; i < ncell; ++i)
+      if( weight > weights[idx+i] ) weights[idx+i] = weight;
+    return true;
+  }
+
+
+  // How track t is sized
+  private static int trackKind(int[] kinds, int t)
+  {
+    return kinds == null ? TRACK_AUTO : kinds[Math.min(t, kinds.length - 1)];
+  }
+
+  private static float trackSize(float[] sizes, int t)
+  {
+    return sizes[Math.min(t, sizes.length - 1)];
+  }
+
+  // Are the n tracks from t all fixed or fractional?
+  private static boolean allDeclared(int[] kinds, int t, int n)
+  {
+    if( kinds == null ) return false;
+    for( int k = t; k < t + n; ++k )
+      if( trackKind(kinds, k) == TRACK_AUTO ) return false;
+    return true;
+  }
+
+  // Total size of n tracks from t, if they're all fixed, else -1
+  private static int fixedSize(int[] kinds, float[] sizes, int t, int n)
+  {
+    if( kinds == null ) return -1;
+    int total = 0;
+    for( int k = t; k < t + n; ++k ) {
+      if( trackKind(kinds, k) != TRACK_FIXED ) return -1;
+      total += (int) trackSize(sizes, k);
+    }
+    return total;
+  }
+
+  private static boolean hasFraction(int[] kinds, int n)
+  {
+    if( kinds == null ) return false;
+    for( int t = 0; t < Math.min(n, kinds.length); ++t )
+      if( kinds[t] == TRACK_FRACTION ) return true;
+    return n > kinds.length && kinds[kinds.length - 1] == TRACK_FRACTION;
+  }
+
+  // out[t] = max(sizes[t], mins[t]) for the first n tracks
+  private static void
+  floor(int[] sizes, int n, int[] mins, int nmin, int[] out)
+  {
+    for( int t = 0; t < n; ++t )
+      out[t] = t < nmin ? Math.max(sizes[t], mins[t]) : sizes[t];
+  }
+
+  private static int sum(int[] sizes, int n)
+  {
+    int total = 0;
+    for( int t = 0; t < n; ++t ) total += sizes[t];
+    return total;
+  }
+
+  // Preferred total of n declared tracks:  fixed sizes, the maxima of
+  // the auto tracks, and nothing for the fractional ones.
+  private static int
+  declaredTotal(int[] kinds, float[] sizes, int[] max, int n)
+  {
+    int total = 0;
+    for( int t = 0; t < n; ++t ) {
+      switch( trackKind(kinds, t) ) {
+        case TRACK_FIXED: total += (int) trackSize(sizes, t); break;
+        case TRACK_FRACTION: break;
+        default: total += max[t]; break;
+      }
+    }
+    return total;
+  }
+
+  /**
+   * distribute() for an axis with declared track sizes.  Fixed tracks
+   * get their size and fractional ones start at zero; the excess then
+   * goes to the fractional tracks by their fractions if there are
+   * any, else to the auto tracks by weight.
+   */
+  private void
+  distributeDeclared(int n, int size, int[] kinds, float[] sizes,
+        int[] max, float[] weights, int[] out)
+  {
+    final boolean fractions = hasFraction(kinds, n);
+    final float[] w = uniform_weights;
+    int total = 0;
+    float wtot = 0;
+    for( int t = 0; t < n; ++t ) {
+      switch( trackKind(kinds, t) ) {
+        case TRACK_FIXED:
+          out[t] = (int) trackSize(sizes, t);
+          w[t] = 0;
+          break;
+        case TRACK_FRACTION:
+          out[t] = 0;
+          w[t] = trackSize(sizes, t);
+          break;
+        default:
+          out[t] = max[t];
+          w[t] = fractions ? 0 : weights[t];
+          break;
+      }
+      total += out[t];
+      wtot += w[t];
+    }
+    distributeExcess(n, size, out, total, w, wtot, false);
+  }
+
+  /**
+   * Utility: distribute excess space across a number of cells.
+   * @param ncell    number of columns/rows in region
+   * @param size     total available size
+   * @param sizes    array of widths/heights
+   * @param stot     total size
+   * @param weights  weights of the columns/rows
+   * @param wtot     total weight
+   * @param uniform  true if this function should try to make all sizes the same
+   */
+  private void
+  distributeExcess(int ncell, int size, int[] sizes, int stot,
+        float[] weights, float wtot, boolean uniform)
+  {
+    if( ncell > sizes.length ) {
+      log.severe("distributeExcess: ncell exceeds array length");
+      return;
+    }
+
+    // First, is there excess size to distribute?
+    if (size <= stot)
+      return;
+
+    int i;
+
+    if (uniform) {
+      // Distribute to make all equal
+      int max_size = 0;
+      for( i=0; i < ncell; ++i )
+        if( sizes[i] > max_size ) max_size = sizes[i];
+      if (size >= max_size * ncell) {
+        // Lucky, it will all fit
+        for( i = 0; i < ncell; ++i )
+          sizes[i] = max_size;
+        stot = max_size * ncell;
+      } else {
+        // Assign new weights, based on need.  The real weights are
+        // kept for the next pass.
+        weights = uniform_weights;
+        wtot = 0;
+        for (i=0; i<ncell; ++i) {
+          int d = max_size - sizes[i];
+          weights[i] = d;
+          wtot += d;
+        }
+      }
+    }
+
+    // Finally, distribute the excess by weight.
+    if (wtot > 0) {
+      // Distribute excess by weight
+      final float excess = size - stot;
+      final float step = excess/wtot;
+      float e1 = 0, e2 = 0;
+      for( i=0; i < ncell; ++i )
+      {
+        e2 += step*weights[i];
+        sizes[i] += (int)e2 - (int)e1;
+        e1 = e2;
+      }
+    }
+  }
+
+  /**
+   * Given a cell, its position, and span, compute the size
+   * and placement of its frame.
+   */
+  public void
+  layoutCell(int i)
+  {
+      int excess;
+      int x = left + xs[cell_x[i]] + cell_ml[i];
+      int y = top + ys[cell_y[i]] + cell_mt[i];
+
+      final int hgravity = cell_gravity[i] & HORIZONTAL_GRAVITY_MASK;
+      final int width = getCellWidth(i);
+      int mw = cell_w[i];
+      final int cw = mw + cell_ml[i] + cell_mr[i];
+
+      // Correct for preferred fill & alignment
+      //  hgravity:  object's gravity within the cell
+      //  width: total width of the cell
+      //  mw: cell requested width
+      //  cw: cell requested width plus margins
+      //  x: cell left edge, after left margin
+
+      if( hgravity != FILL_HORIZONTAL && (excess = width - cw) > 0 )
+      {
+        switch( hgravity ) {
+          default:
+          case LEFT: break;
+          case CENTER_HORIZONTAL: x += excess/2; break;
+          case RIGHT: x += excess; break;
+        }
+      } else {
+        mw = width - (cell_ml[i] + cell_mr[i]);
+      }
+
+      final int vgravity = cell_gravity[i] & VERTICAL_GRAVITY_MASK;
+      final int height = getCellHeight(i);
+      int mh = cell_h[i];
+      final int ch = mh + cell_mt[i] + cell_mb[i];
+
+      if( vgravity != FILL_VERTICAL && (excess = height - ch) > 0 )
+      {
+        switch( vgravity ) {
+          default:
+          case TOP: break;
+          case CENTER_VERTICAL: y += excess/2; break;
+          case BOTTOM: y += excess; break;
+        }
+      } else {
+        mh = height - (cell_mt[i] + cell_mb[i]);
+      }
+
+      frame_x[i] = x;
+      frame_y[i] = y;
+      frame_w[i] = mw;
+      frame_h[i] = mh;
+  }
+}
@@ -0,0 +1,120 @@
+/**
+ * Occupancy.java - which grid positions are taken
+ *
+ * Author: Edward A. Falk
+ *         efalk@users.sourceforge.net
+ *
+ *
+ */
+
+package org.efalk.gridbox.core;
+
+import java.util.Arrays;
+
+/**
+ * One bit per grid position, set if some cell covers it.  Each row is
+ * a packed array of longs, grown as cells are marked further out, and
+ * rows are added as needed.  Used by GridSolver to find free space for
+ * cells without a position, and to notice cells landing on each other.
+ */
+final class Occupancy {
+
+  private long[][] rows = new long[0][];
+  private int nrows = 0;                // Rows which may have bits set
+
+  /** Mark everything free, keeping the storage. */
+  void clear()
+  {
+    for( int r = 0; r < nrows; ++r ) Arrays.fill(rows[r], 0L);
+    nrows = 0;
+  }
+
+  /** Is the w x h area at (x,y) entirely free? */
+  boolean isFree(int x, int y, int w, int h)
+  {
+    for( int r = y; r < y + h; ++r )
+      if( nextSet(r, x) < x + w ) return false;
+    return true;
+  }
+
+  /**
+   * Mark the w x h area at (x,y) taken.  Returns false if any of it
+   * already was.
+   */
+  boolean mark(int x, int y, int w, int h)
+  {
+    boolean free = true;
+    for( int r = y; r < y + h; ++r ) {
+      final long[] row = row(r, x + w);
+      for( int c = x; c < x + w; ) {
+        final int k = c >>> 6;
+        final int n = Math.min(x + w - c, 64 - (c & 63));
+        final long bits = (n == 64 ? -1L : (1L << n) - 1) << (c & 63);
+        if( (row[k] & bits) != 0 ) free = false;
+        row[k] |= bits;
+        c += n;
+      }
+    }
+    return free;
+  }
+
+  /** Mark the w x h area at (x,y) free. */
+  void unmark(int x, int y, int w, int h)
+  {
+    for( int r = y; r < Math.min(y + h, nrows); ++r ) {
+      final long[] row = rows[r];
+      for( int c = x; c < x + w && (c >>> 6) < row.length; ) {
+        final int k = c >>> 6;
+        final int n = Math.min(x + w - c, 64 - (c & 63));
+        final long bits = (n == 64 ? -1L : (1L << n) - 1) << (c & 63);
+        row[k] &= ~bits;
+        c += n;
+      }
+    }
+  }
+
+  /** First free column at or after x in row y. */
+  int nextFree(int y, int x)
+  {
+    if( y >= nrows ) return x;
+    final long[] row = rows[y];
+    int k = x >>> 6;
+    if( k >= row.length ) return x;
+    long word = ~row[k] & (-1L << (x & 63));
+    while( word == 0 ) {
+      if( ++k >= row.length ) return k << 6;
+      word = ~row[k];
+    }
+    return (k << 6) + Long.numberOfTrailingZeros(word);
+  }
+
+  /** First taken column at or after x in row y, or MAX_VALUE. */
+  int nextSet(int y, int x)
+  {
+    if( y >= nrows ) return Integer.MAX_VALUE;
+    final long[] row = rows[y];
+    int k = x >>> 6;
+    if( k >= row.length ) return Integer.MAX_VALUE;
+    long word = row[k] & (-1L << (x & 63));
+    while( word == 0 ) {
+      if( ++k >= row.length ) return Integer.MAX_VALUE;
+      word = row[k];
+    }
+    return (k << 6) + Long.numberOfTrailingZeros(word);
+  }
+
+  // Row r, with room for at least 'width' columns
+  private long[] row(int r, int width)
+  {
+    if( r >= rows.length )
+      rows = Arrays.copyOf(rows, Math.max(r + 1, rows.length * 2));
+    while( nrows <= r ) {
+      if( rows[nrows] == null ) rows[nrows] = new long[1];
+      ++nrows;
+    }
+    final int words = (width + 63) >>> 6;
+    if( rows[r].length < words )
+      rows[r] = Arrays.copyOf(rows[r], Math.max(words, rows[r].length * 2));
+    return rows[r];
+  }
+}
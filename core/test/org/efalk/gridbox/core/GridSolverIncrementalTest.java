@@ -0,0 +1,283 @@
+/**
+ * GridSolverIncrementalTest.java - incremental updates against a full recount
+ */
+
+package org.efalk.gridbox.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Once countCells() has run, GridSolver keeps the grid size, track
+ * maxima, weights and index up to date one cell at a time.  These
+ * tests make random changes to a counted solver, and after each one
+ * compare it with a new solver given the same cells and counted from
+ * scratch.
+ */
+public class GridSolverIncrementalTest {
+
+  // What the test knows about each cell, since the solver has no
+  // getters for most of it.
+  private static final class Cell {
+    int w, h;
+    int ml, mt, mr, mb;
+    float wx, wy;
+    int gravity;
+  }
+
+  private static final int[] GRAVITIES = {
+    GridSolver.NO_GRAVITY, GridSolver.CENTER, GridSolver.FILL,
+    GridSolver.LEFT, GridSolver.RIGHT, GridSolver.TOP, GridSolver.BOTTOM,
+    GridSolver.FILL_HORIZONTAL, GridSolver.FILL_VERTICAL,
+  };
+
+  @Test
+  public void mutationsMatchRecount() {
+    run(new Random(42), false);
+  }
+
+  @Test
+  public void mutationsMatchRecountUniform() {
+    run(new Random(43), true);
+  }
+
+  /*
+   * A grid counted by copying another's counting, then changed.  It
+   * shares the shape's span order and index until it changes; the
+   * shape mustn't change with it, so a second grid copying the shape
+   * afterwards must still come out right.
+   */
+  @Test
+  public void countCellsLikeMatchesRecount() {
+    final Random r = new Random(44);
+    for( int t = 0; t < 200; ++t ) {
+      final int n = 1 + r.nextInt(40);
+      final int width = 4 + r.nextInt(8);
+      final GridSolver shape = new GridSolver();
+      shape.setCellCount(n);
+      for( int i = 0; i < n; ++i ) {
+        move(shape, i, r, width);
+        if( r.nextInt(10) == 0 ) shape.setVisible(i, false);
+      }
+      shape.countCells();
+
+      final ArrayList<Cell> cells = new ArrayList<Cell>();
+      for( int i = 0; i < n; ++i ) cells.add(randomCell(r));
+      final GridSolver g = like(shape, cells);
+      assertFalse("t=" + t + " unprepared", g.countCellsLike(shape));
+      shape.prepareShape();
+      assertTrue("t=" + t, g.countCellsLike(shape));
+      final ArrayList<Cell> copy = new ArrayList<Cell>(cells);
+      check(g, cells, false, r, "t=" + t + " copied");
+      for( int step = 0; step < 20; ++step ) {
+        final String what = mutate(g, cells, r, width);
+        check(g, cells, false, r, "t=" + t + " step=" + step + " " + what);
+      }
+
+      final GridSolver k = like(shape, copy);
+      assertTrue("t=" + t, k.countCellsLike(shape));
+      check(k, copy, false, r, "t=" + t + " shape after changes");
+
+      // Cells placed differently can't copy it.
+      final GridSolver h = new GridSolver();
+      h.setCellCount(n);
+      for( int i = 0; i < n; ++i ) {
+        h.setCell(i, shape.getGridx(i), shape.getGridy(i),
+                  shape.getColSpan(i), shape.getRowSpan(i));
+        h.setVisible(i, shape.isVisible(i));
+      }
+      h.setVisible(n - 1, !shape.isVisible(n - 1));
+      assertFalse("t=" + t, h.countCellsLike(shape));
+    }
+  }
+
+  // A solver with the given cells, placed as in shape, not counted
+  private static GridSolver like(GridSolver shape, ArrayList<Cell> cells) {
+    final GridSolver g = new GridSolver();
+    final int n = cells.size();
+    g.setCellCount(n);
+    for( int i = 0; i < n; ++i ) {
+      apply(g, i, cells.get(i));
+      g.setCell(i, shape.getGridx(i), shape.getGridy(i),
+                shape.getColSpan(i), shape.getRowSpan(i));
+      g.setVisible(i, shape.isVisible(i));
+    }
+    return g;
+  }
+
+  private static void run(Random r, boolean uniform) {
+    for( int t = 0; t < 300; ++t ) {
+      final GridSolver g = new GridSolver();
+      g.setForceUniformWidth(uniform);
+      g.setForceUniformHeight(uniform);
+      final ArrayList<Cell> cells = new ArrayList<Cell>();
+      final int width = 4 + r.nextInt(8);
+
+      final int n = r.nextInt(40);
+      g.setCellCount(n);
+      for( int i = 0; i < n; ++i ) {
+        final Cell c = randomCell(r);
+        cells.add(c);
+        apply(g, i, c);
+        if( r.nextInt(3) > 0 ) move(g, i, r, width);
+        if( r.nextInt(10) == 0 ) g.setVisible(i, false);
+      }
+      g.countCells();
+
+      for( int step = 0; step < 60; ++step ) {
+        final String what = mutate(g, cells, r, width);
+        check(g, cells, uniform, r, "t=" + t + " step=" + step + " " + what);
+      }
+    }
+  }
+
+  // Make one random change to g, and return what it was.
+  private static String mutate(GridSolver g, ArrayList<Cell> cells,
+    Random r, int width)
+  {
+    final int n = g.getCellCount();
+    final int op = n == 0 ? 0 : r.nextInt(7);
+    final int k = r.nextInt(n + (op == 0 ? 1 : 0));
+    switch( op ) {
+      case 0: {
+        g.insertCell(k);
+        final Cell c = randomCell(r);
+        cells.add(k, c);
+        apply(g, k, c);
+        if( r.nextBoolean() ) move(g, k, r, width);
+        g.placeCell(k);
+        return "insert " + k;
+      }
+      case 1:
+        g.removeCell(k);
+        cells.remove(k);
+        return "remove " + k;
+      case 2:
+        move(g, k, r, width);
+        return "move " + k;
+      case 3:
+        g.setVisible(k, !g.isVisible(k));
+        g.placeCell(k);
+        return "visible " + k;
+      case 4: {
+        final Cell c = cells.get(k);
+        c.w = r.nextInt(80);
+        c.h = r.nextInt(50);
+        g.setPreferredSize(k, c.w, c.h);
+        return "resize " + k;
+      }
+      case 5: {
+        final Cell c = cells.get(k);
+        c.wx = weight(r);
+        c.wy = weight(r);
+        c.gravity = GRAVITIES[r.nextInt(GRAVITIES.length)];
+        g.setCellParams(k, c.wx, c.wy, c.gravity);
+        return "params " + k;
+      }
+      default: {
+        final Cell c = cells.get(k);
+        c.ml = r.nextInt(4);
+        c.mt = r.nextInt(4);
+        c.mr = r.nextInt(4);
+        c.mb = r.nextInt(4);
+        g.setMargins(k, c.ml, c.mt, c.mr, c.mb);
+        return "margins " + k;
+      }
+    }
+  }
+
+  // Compare g with the same cells counted from scratch.
+  private static void check(GridSolver g, ArrayList<Cell> cells,
+    boolean uniform, Random r, String msg)
+  {
+    final GridSolver f = new GridSolver();
+    f.setForceUniformWidth(uniform);
+    f.setForceUniformHeight(uniform);
+    final int n = g.getCellCount();
+    assertEquals(msg, cells.size(), n);
+    f.setCellCount(n);
+    for( int i = 0; i < n; ++i ) {
+      apply(f, i, cells.get(i));
+      f.setCell(i, g.getGridx(i), g.getGridy(i),
+                g.getColSpan(i), g.getRowSpan(i));
+      f.setVisible(i, g.isVisible(i));
+    }
+    f.countCells();
+
+    final int ncol = f.getColumnCount(), nrow = f.getRowCount();
+    assertEquals(msg + " columns", ncol, g.getColumnCount());
+    assertEquals(msg + " rows", nrow, g.getRowCount());
+
+    g.computeTrackSizes();
+    f.computeTrackSizes();
+    for( int c = 0; c < ncol; ++c )
+      assertEquals(msg + " column max " + c,
+        f.getPreferredColumnWidth(c), g.getPreferredColumnWidth(c));
+    for( int y = 0; y < nrow; ++y )
+      assertEquals(msg + " row max " + y,
+        f.getPreferredRowHeight(y), g.getPreferredRowHeight(y));
+    assertEquals(msg + " width", f.getPreferredWidth(), g.getPreferredWidth());
+    assertEquals(msg + " height", f.getPreferredHeight(), g.getPreferredHeight());
+    assertEquals(msg + " weightx", f.getTotalWeightx(), g.getTotalWeightx(), 0);
+    assertEquals(msg + " weighty", f.getTotalWeighty(), g.getTotalWeighty(), 0);
+
+    for( int c = 0; c < ncol; ++c )
+      for( int y = 0; y < nrow; ++y )
+        assertEquals(msg + " cell at " + c + "," + y,
+          f.getCellAt(c, y), g.getCellAt(c, y));
+
+    final int width = f.getPreferredWidth() + r.nextInt(200) - 20;
+    final int height = f.getPreferredHeight() + r.nextInt(200) - 20;
+    g.distribute(width, height);
+    f.distribute(width, height);
+    g.layout(5, 7);
+    f.layout(5, 7);
+    for( int c = 0; c < ncol; ++c )
+      assertEquals(msg + " column " + c, f.getColumnWidth(c), g.getColumnWidth(c));
+    for( int y = 0; y < nrow; ++y )
+      assertEquals(msg + " row " + y, f.getRowHeight(y), g.getRowHeight(y));
+    for( int i = 0; i < n; ++i ) {
+      if( !f.isVisible(i) ) continue;
+      assertEquals(msg + " frame x " + i, f.getFrameX(i), g.getFrameX(i));
+      assertEquals(msg + " frame y " + i, f.getFrameY(i), g.getFrameY(i));
+      assertEquals(msg + " frame w " + i, f.getFrameWidth(i), g.getFrameWidth(i));
+      assertEquals(msg + " frame h " + i, f.getFrameHeight(i), g.getFrameHeight(i));
+    }
+  }
+
+  private static Cell randomCell(Random r) {
+    final Cell c = new Cell();
+    c.w = r.nextInt(80);
+    c.h = r.nextInt(50);
+    c.ml = r.nextInt(4);
+    c.mt = r.nextInt(4);
+    c.mr = r.nextInt(4);
+    c.mb = r.nextInt(4);
+    c.wx = weight(r);
+    c.wy = weight(r);
+    c.gravity = GRAVITIES[r.nextInt(GRAVITIES.length)];
+    return c;
+  }
+
+  private static float weight(Random r) {
+    return r.nextInt(4) == 0 ? 1 + r.nextInt(2) : 0;
+  }
+
+  private static void apply(GridSolver g, int i, Cell c) {
+    g.setCellParams(i, c.wx, c.wy, c.gravity);
+    g.setMargins(i, c.ml, c.mt, c.mr, c.mb);
+    g.setPreferredSize(i, c.w, c.h);
+  }
+
+  private static void move(GridSolver g, int i, Random r, int width) {
+    g.setCell(i, r.nextInt(width), r.nextInt(12),
+              r.nextInt(5) == 0 ? 2 + r.nextInt(2) : 1,
+              r.nextInt(6) == 0 ? 2 : 1);
+  }
+}
@@ -0,0 +1,282 @@
+/**
+ * GridSolverPlacementTest.java - dense placement, overlaps and strict mode
+ */
+
+package org.efalk.gridbox.core;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+/**
+ * PLACE_DENSE placement, kept up to date as cells come and go, and the
+ * overlap count and logging of strict mode.
+ */
+public class GridSolverPlacementTest {
+
+  @Test
+  public void denseFillsRowsInOrder() {
+    final GridSolver g = dense(3, 7);
+    g.countCells();
+    for( int i = 0; i < 7; ++i ) {
+      assertEquals("x " + i, i % 3, g.getGridx(i));
+      assertEquals("y " + i, i / 3, g.getGridy(i));
+    }
+    assertEquals(3, g.getColumnCount());
+    assertEquals(3, g.getRowCount());
+  }
+
+  @Test
+  public void denseFillsAroundPlacedCells() {
+    // A 2x2 cell at 1,0 in a grid 3 wide:  the rest go around it.
+    final GridSolver g = dense(3, 5);
+    g.setCell(2, 1, 0, 2, 2);
+    g.countCells();
+    assertPosition(g, 0, 0, 0);
+    assertPosition(g, 1, 0, 1);
+    assertPosition(g, 2, 1, 0);
+    assertPosition(g, 3, 0, 2);
+    assertPosition(g, 4, 1, 2);
+    assertEquals(0, g.getOverlapCount());
+  }
+
+  @Test
+  public void denseKeepsOneCoordinate() {
+    final GridSolver g = dense(3, 4);
+    g.setCell(0, 1, -1, 1, 1);          // column 1
+    g.setCell(1, 1, -1, 1, 1);          // column 1, below it
+    g.setCell(2, -1, 2, 1, 1);          // row 2
+    g.countCells();
+    assertPosition(g, 0, 1, 0);
+    assertPosition(g, 1, 1, 1);
+    assertPosition(g, 2, 0, 2);
+    assertPosition(g, 3, 0, 0);
+  }
+
+  @Test
+  public void denseWideSpanStartsRow() {
+    final GridSolver g = dense(2, 2);
+    g.setCell(1, -1, -1, 4, 1);
+    g.countCells();
+    assertPosition(g, 0, 0, 0);
+    assertPosition(g, 1, 0, 1);
+  }
+
+  @Test
+  public void densePlaceCellUsesFreedSpace() {
+    final GridSolver g = dense(3, 9);
+    g.countCells();
+    g.removeCell(4);                    // frees 1,1
+    g.insertCell(8);
+    g.placeCell(8);
+    assertPosition(g, 8, 1, 1);
+    g.setVisible(0, false);             // frees 0,0
+    g.insertCell(9);
+    g.placeCell(9);
+    assertPosition(g, 9, 0, 0);
+    assertEquals(0, g.getOverlapCount());
+  }
+
+  // Random dense grids, against placing the cells one by one by hand
+  @Test
+  public void denseMatchesReference() {
+    final Random r = new Random(5);
+    for( int t = 0; t < 500; ++t ) {
+      final int wrap = r.nextInt(5) == 0 ? 0 : 1 + r.nextInt(10);
+      final int n = r.nextInt(40);
+      final GridSolver g = dense(wrap, n);
+      final int[][] cells = new int[n][];
+      for( int i = 0; i < n; ++i ) {
+        final int k = r.nextInt(6);
+        cells[i] = new int[] {
+          k <= 1 ? r.nextInt(10) : -1, k == 0 || k == 2 ? r.nextInt(10) : -1,
+          r.nextInt(4) == 0 ? 2 + r.nextInt(2) : 1,
+          r.nextInt(4) == 0 ? 2 : 1,
+        };
+        g.setCell(i, cells[i][0], cells[i][1], cells[i][2], cells[i][3]);
+      }
+      g.countCells();
+
+      // Cells with a position first, then the rest in order
+      final boolean[][] taken = new boolean[64][64];
+      for( int pass = 0; pass < 2; ++pass ) {
+        for( int i = 0; i < n; ++i ) {
+          final int[] c = cells[i];
+          final boolean fixed = c[0] >= 0 && c[1] >= 0;
+          if( fixed != (pass == 0) ) continue;
+          final int[] p = fixed ? c : refPlace(taken, c, wrap);
+          assertPosition(g, i, p[0], p[1]);
+          mark(taken, p[0], p[1], c[2], c[3]);
+        }
+      }
+      assertEquals("t=" + t, refOverlaps(g), g.getOverlapCount());
+    }
+  }
+
+  @Test
+  public void overlapCountIgnoresOrder() {
+    // A covers 0,0 and 1,0; B sits on 0,0 and C on 1,0.
+    final int[][] abc = { {0, 0, 2, 1}, {0, 0, 1, 1}, {1, 0, 1, 1} };
+    final int[][] orders = { {0, 1, 2}, {1, 2, 0}, {2, 0, 1} };
+    for( int[] order : orders ) {
+      final GridSolver g = new GridSolver();
+      g.setCellCount(3);
+      for( int k = 0; k < 3; ++k ) {
+        final int[] c = abc[order[k]];
+        g.setCell(k, c[0], c[1], c[2], c[3]);
+      }
+      g.countCells();
+      assertEquals(3, g.getOverlapCount());
+    }
+  }
+
+  @Test
+  public void overlapCountFollowsMoves() {
+    final Random r = new Random(11);
+    for( int t = 0; t < 300; ++t ) {
+      final GridSolver g = new GridSolver();
+      final int n = 1 + r.nextInt(20);
+      g.setCellCount(n);
+      for( int i = 0; i < n; ++i )
+        g.setCell(i, r.nextInt(6), r.nextInt(6), 1 + r.nextInt(2), 1);
+      g.countCells();
+      for( int step = 0; step < 30; ++step ) {
+        final int i = r.nextInt(g.getCellCount());
+        switch( r.nextInt(4) ) {
+          case 0:
+            g.setCell(i, r.nextInt(6), r.nextInt(6), 1 + r.nextInt(2), 1);
+            break;
+          case 1:
+            g.setVisible(i, !g.isVisible(i));
+            break;
+          case 2:
+            g.insertCell(i);
+            g.setCell(i, r.nextInt(6), r.nextInt(6), 1, 1 + r.nextInt(2));
+            break;
+          default:
+            if( g.getCellCount() > 1 ) g.removeCell(i);
+        }
+        assertEquals("t=" + t + " step=" + step,
+                     refOverlaps(g), g.getOverlapCount());
+      }
+    }
+  }
+
+  @Test
+  public void strictLogsEachCellLandingOnAnother() {
+    final Logger log = Logger.getLogger("Gridbox");
+    final int[] warnings = new int[1];
+    final Handler handler = new Handler() {
+      @Override
+      public void publish(LogRecord rec) {
+        if( rec.getLevel() == Level.WARNING ) ++warnings[0];
+      }
+      @Override public void flush() { }
+      @Override public void close() { }
+    };
+    final boolean parent = log.getUseParentHandlers();
+    log.addHandler(handler);
+    log.setUseParentHandlers(false);
+    try {
+      final GridSolver g = new GridSolver();
+      g.setCellCount(4);
+      g.setCell(0, 0, 0, 2, 1);
+      g.setCell(1, 0, 0, 1, 1);         // on cell 0
+      g.setCell(2, 1, 0, 1, 1);         // on cell 0
+      g.setCell(3, 2, 0, 1, 1);
+      g.countCells();
+      assertEquals("not strict", 0, warnings[0]);
+
+      g.setStrict(true);
+      g.countCells();
+      assertEquals("count", 2, warnings[0]);
+      assertEquals(3, g.getOverlapCount());
+
+      // Moving cell 3 onto cell 0 is logged as it happens.
+      g.setCell(3, 1, 0, 1, 1);
+      assertEquals("move", 3, warnings[0]);
+      assertEquals(4, g.getOverlapCount());
+
+      // Moving the others off clears the overlaps.
+      g.setCell(1, 0, 1, 1, 1);
+      g.setCell(2, 1, 1, 1, 1);
+      g.setCell(3, 2, 0, 1, 1);
+      assertEquals(0, g.getOverlapCount());
+    } finally {
+      log.removeHandler(handler);
+      log.setUseParentHandlers(parent);
+    }
+  }
+
+  private static GridSolver dense(int columns, int n) {
+    final GridSolver g = new GridSolver();
+    g.setAutoPlacement(GridSolver.PLACE_DENSE, columns);
+    g.setCellCount(n);
+    return g;
+  }
+
+  private static void assertPosition(GridSolver g, int i, int x, int y) {
+    assertEquals("cell " + i + " x", x, g.getGridx(i));
+    assertEquals("cell " + i + " y", y, g.getGridy(i));
+  }
+
+  // Where dense placement should put cell c = {x, y, w, h}
+  private static int[] refPlace(boolean[][] taken, int[] c, int wrap) {
+    final int w = c[2], h = c[3];
+    if( c[0] >= 0 ) {
+      for( int y = 0;; ++y )
+        if( free(taken, c[0], y, w, h) ) return new int[] {c[0], y};
+    }
+    if( c[1] >= 0 ) {
+      for( int x = 0;; ++x )
+        if( free(taken, x, c[1], w, h) ) return new int[] {x, c[1]};
+    }
+    final int width = wrap > 0 ? Math.max(wrap, w) : 40;
+    for( int y = 0;; ++y )
+      for( int x = 0; x + w <= width; ++x )
+        if( free(taken, x, y, w, h) ) return new int[] {x, y};
+  }
+
+  private static boolean free(boolean[][] taken, int x, int y, int w, int h) {
+    for( int r = y; r < y + h; ++r )
+      for( int c = x; c < x + w; ++c )
+        if( taken[r][c] ) return false;
+    return true;
+  }
+
+  private static void mark(boolean[][] taken, int x, int y, int w, int h) {
+    for( int r = y; r < y + h; ++r )
+      for( int c = x; c < x + w; ++c )
+        taken[r][c] = true;
+  }
+
+  // Placed cells sharing a position with some other placed cell
+  private static int refOverlaps(GridSolver g) {
+    int n = 0;
+    for( int i = 0; i < g.getCellCount(); ++i ) {
+      if( !placed(g, i) ) continue;
+      for( int j = 0; j < g.getCellCount(); ++j ) {
+        if( j != i && placed(g, j) &&
+            g.getGridx(i) < g.getGridx(j) + g.getColSpan(j) &&
+            g.getGridx(j) < g.getGridx(i) + g.getColSpan(i) &&
+            g.getGridy(i) < g.getGridy(j) + g.getRowSpan(j) &&
+            g.getGridy(j) < g.getGridy(i) + g.getRowSpan(i) )
+        {
+          ++n;
+          break;
+        }
+      }
+    }
+    return n;
+  }
+
+  private static boolean placed(GridSolver g, int i) {
+    return g.isVisible(i) && g.getGridx(i) >= 0 && g.getGridy(i) >= 0;
+  }
+}
@@ -0,0 +1,257 @@
+/**
+ * GridSolverTest.java - the layout rules, on a plain JVM
+ */
+
+package org.efalk.gridbox.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Small grids whose layout can be worked out by hand:  placement,
+ * preferred track sizes, how excess space is handed out and where
+ * each cell's frame ends up within its cell.
+ */
+public class GridSolverTest {
+
+  @Test
+  public void placesCellsNextToTheLast() {
+    final GridSolver g = solver(4);
+    g.setCell(2, -1, 1, 1, 1);          // new row, next column over
+    g.setCell(3, 0, -1, 1, 1);          // column 0, same row
+    g.countCells();
+    assertPosition(g, 0, 0, 0);
+    assertPosition(g, 1, 1, 0);
+    assertPosition(g, 2, 2, 1);
+    assertPosition(g, 3, 0, 1);
+    assertEquals(3, g.getColumnCount());
+    assertEquals(2, g.getRowCount());
+  }
+
+  @Test
+  public void tracksFitTheirLargestCell() {
+    // 2x2:  widths 10 30 / 20 5, heights 4 8 / 6 2, one margin
+    final GridSolver g = solver(4);
+    g.setCell(2, 0, 1, 1, 1);
+    g.setCell(3, 1, 1, 1, 1);
+    g.countCells();
+    g.setPreferredSize(0, 10, 4);
+    g.setPreferredSize(1, 30, 8);
+    g.setPreferredSize(2, 20, 6);
+    g.setPreferredSize(3, 5, 2);
+    g.setMargins(3, 1, 2, 3, 4);
+    g.computeTrackSizes();
+    g.distribute(g.getPreferredWidth(), g.getPreferredHeight());
+
+    assertEquals(20, g.getColumnWidth(0));
+    assertEquals(30, g.getColumnWidth(1));
+    assertEquals(8, g.getRowHeight(0));
+    assertEquals(8, g.getRowHeight(1));    // 2 + 2 + 4 of margins
+    assertEquals(50, g.getPreferredWidth());
+    assertEquals(16, g.getPreferredHeight());
+  }
+
+  @Test
+  public void invisibleCellsTakeNoRoom() {
+    final GridSolver g = solver(3);
+    g.setCell(1, 1, 0, 1, 1);
+    g.setCell(2, 0, 1, 1, 1);
+    g.setVisible(1, false);
+    g.countCells();
+    for( int i = 0; i < 3; ++i ) g.setPreferredSize(i, 10, 10);
+    g.computeTrackSizes();
+    assertEquals(1, g.getColumnCount());
+    assertEquals(10, g.getPreferredWidth());
+    assertEquals(20, g.getPreferredHeight());
+  }
+
+  @Test
+  public void excessGoesByWeight() {
+    final GridSolver g = row(10, 10, 10);
+    g.setCellParams(1, 1, 0, GridSolver.FILL);
+    g.setCellParams(2, 3, 0, GridSolver.FILL);
+    g.computeTrackSizes();
+    assertEquals("weight", 4, g.getTotalWeightx(), 0);
+    g.distribute(70, 10);
+    assertEquals(10, g.getColumnWidth(0));
+    assertEquals(20, g.getColumnWidth(1));
+    assertEquals(40, g.getColumnWidth(2));
+  }
+
+  @Test
+  public void noWeightNoGrowth() {
+    final GridSolver g = row(10, 20);
+    g.computeTrackSizes();
+    g.distribute(100, 50);
+    assertEquals(10, g.getColumnWidth(0));
+    assertEquals(20, g.getColumnWidth(1));
+    assertEquals(10, g.getRowHeight(0));
+  }
+
+  @Test
+  public void tooLittleSpaceKeepsPreferredSizes() {
+    final GridSolver g = row(10, 20);
+    g.setCellParams(0, 1, 0, GridSolver.FILL);
+    g.computeTrackSizes();
+    g.distribute(15, 5);
+    assertEquals(10, g.getColumnWidth(0));
+    assertEquals(20, g.getColumnWidth(1));
+  }
+
+  @Test
+  public void uniformWidthEvensOut() {
+    final GridSolver g = row(10, 30, 20);
+    g.setForceUniformWidth(true);
+    g.computeTrackSizes();
+    g.distribute(90, 10);
+    for( int c = 0; c < 3; ++c )
+      assertEquals("column " + c, 30, g.getColumnWidth(c));
+
+    // Not enough for all of them:  each narrow one gets its share of
+    // the 10 by how far short it is.
+    g.distribute(70, 10);
+    assertEquals(16, g.getColumnWidth(0));
+    assertEquals(30, g.getColumnWidth(1));
+    assertEquals(24, g.getColumnWidth(2));
+  }
+
+  @Test
+  public void framesFollowGravity() {
+    // Cells 0-3 in column 0, made 40 wide by cell 4; rows 16 high,
+    // made so by cells 5-8 in column 1.
+    final int[] gravities = {
+      GridSolver.LEFT | GridSolver.TOP, GridSolver.CENTER,
+      GridSolver.RIGHT | GridSolver.BOTTOM, GridSolver.FILL,
+    };
+    final GridSolver g = solver(9);
+    for( int i = 0; i < 5; ++i ) g.setCell(i, 0, i, 1, 1);
+    for( int i = 5; i < 9; ++i ) g.setCell(i, 1, i - 5, 1, 1);
+    g.countCells();
+    for( int i = 0; i < 4; ++i ) {
+      g.setPreferredSize(i, 10, 4);
+      g.setMargins(i, 2, 1, 2, 1);
+      g.setCellParams(i, 0, 0, gravities[i]);
+    }
+    g.setPreferredSize(4, 40, 1);
+    for( int i = 5; i < 9; ++i ) g.setPreferredSize(i, 1, 16);
+    g.computeTrackSizes();
+    g.distribute(g.getPreferredWidth(), g.getPreferredHeight());
+    g.layout(100, 200);
+
+    assertEquals(140, g.getColumnX(1));
+    assertEquals(216, g.getRowY(1));
+    assertFrame(g, 0, 102, 201, 10, 4);         // top left, inside margins
+    assertFrame(g, 1, 115, 222, 10, 4);         // centred
+    assertFrame(g, 2, 128, 243, 10, 4);         // bottom right
+    assertFrame(g, 3, 102, 249, 36, 14);        // filled
+  }
+
+  @Test
+  public void spanningCellGetsAllItsTracks() {
+    final GridSolver g = solver(3);
+    g.setCell(2, 0, 1, 2, 1);
+    g.countCells();
+    g.setPreferredSize(0, 10, 10);
+    g.setPreferredSize(1, 20, 10);
+    g.setPreferredSize(2, 5, 10);
+    g.setCellParams(2, 0, 0, GridSolver.FILL);
+    g.computeTrackSizes();
+    g.distribute(30, 20);
+    g.layout(0, 0);
+    assertEquals(30, g.getCellWidth(2));
+    assertFrame(g, 2, 0, 10, 30, 10);
+  }
+
+  /*
+   * A grid of 1x1 cells sized in one pass, and the same grid sized the
+   * way grids with spans are, must come out the same.  Some cells are
+   * hidden, have margins or weights, and one keeps changing size.
+   */
+  @Test
+  public void fastPathMatchesGeneralPath() {
+    for( int uniform = 0; uniform < 2; ++uniform ) {
+      final GridSolver fast = scattered(uniform != 0);
+      final GridSolver general = scattered(uniform != 0);
+      general.setFastPath(false);
+      assertTrue(fast.isRegular());
+      for( int step = 0; step < 4; ++step ) {
+        fast.setPreferredSize(17, 5 + 30 * step, 40 - 10 * step);
+        general.setPreferredSize(17, 5 + 30 * step, 40 - 10 * step);
+        fast.computeTrackSizes();
+        general.computeTrackSizes();
+        assertSameTracks("step " + step, fast, general);
+        assertEquals("weightx", fast.getTotalWeightx(),
+            general.getTotalWeightx(), 0);
+        assertEquals("weighty", fast.getTotalWeighty(),
+            general.getTotalWeighty(), 0);
+        final int w = fast.getPreferredWidth() * 3 / 2;
+        final int h = fast.getPreferredHeight() * 3 / 2;
+        fast.distribute(w, h);
+        general.distribute(w, h);
+        assertSameTracks("step " + step, fast, general);
+      }
+    }
+  }
+
+  // 6x5 of 1x1 cells with assorted sizes, margins, weights and gaps
+  private static GridSolver scattered(boolean uniform) {
+    final GridSolver g = solver(30);
+    g.setForceUniformWidth(uniform);
+    g.setForceUniformHeight(uniform);
+    for( int i = 0; i < 30; ++i ) {
+      g.setCell(i, i % 6, i / 6, 1, 1);
+      g.setVisible(i, i % 7 != 3);
+      g.setPreferredSize(i, 10 + i * 7 % 23, 8 + i * 5 % 13);
+      g.setMargins(i, i % 3, i % 2, i % 5 % 2, i % 4);
+      g.setCellParams(i, i % 5 == 0 ? 1 : 0, i % 4 == 1 ? 2 : 0,
+          GridSolver.FILL);
+    }
+    g.countCells();
+    return g;
+  }
+
+  private static void assertSameTracks(String msg, GridSolver a,
+    GridSolver b)
+  {
+    assertEquals(msg + " width", a.getPreferredWidth(), b.getPreferredWidth());
+    assertEquals(msg + " height",
+        a.getPreferredHeight(), b.getPreferredHeight());
+    for( int c = 0; c < a.getColumnCount(); ++c )
+      assertEquals(msg + " column " + c,
+          a.getColumnWidth(c), b.getColumnWidth(c));
+    for( int r = 0; r < a.getRowCount(); ++r )
+      assertEquals(msg + " row " + r, a.getRowHeight(r), b.getRowHeight(r));
+  }
+
+  private static GridSolver solver(int n) {
+    final GridSolver g = new GridSolver();
+    g.setCellCount(n);
+    for( int i = 0; i < n; ++i ) g.setCell(i, -1, -1, 1, 1);
+    return g;
+  }
+
+  // One row of cells of the given widths, 10 high
+  private static GridSolver row(int... widths) {
+    final GridSolver g = solver(widths.length);
+    g.countCells();
+    for( int i = 0; i < widths.length; ++i )
+      g.setPreferredSize(i, widths[i], 10);
+    return g;
+  }
+
+  private static void assertPosition(GridSolver g, int i, int x, int y) {
+    assertEquals("cell " + i + " x", x, g.getGridx(i));
+    assertEquals("cell " + i + " y", y, g.getGridy(i));
+  }
+
+  private static void assertFrame(GridSolver g, int i,
+    int x, int y, int w, int h)
+  {
+    assertEquals("cell " + i + " x", x, g.getFrameX(i));
+    assertEquals("cell " + i + " y", y, g.getFrameY(i));
+    assertEquals("cell " + i + " width", w, g.getFrameWidth(i));
+    assertEquals("cell " + i + " height", h, g.getFrameHeight(i));
+  }
+}
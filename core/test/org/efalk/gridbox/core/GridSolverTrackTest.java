@@ -0,0 +1,230 @@
+/**
+ * GridSolverTrackTest.java - declared track sizes and minimum tracks
+ */
+
+package org.efalk.gridbox.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tracks that aren't sized from their cells alone:  fixed and
+ * fractional tracks (setColumnSizes()), the minimums a track group
+ * imposes (setMinColumnWidths()), and settling the columns before the
+ * rows, as Gridbox's measure_once mode does.
+ */
+public class GridSolverTrackTest {
+
+  private static final int AUTO = GridSolver.TRACK_AUTO;
+  private static final int FIXED = GridSolver.TRACK_FIXED;
+  private static final int FRACTION = GridSolver.TRACK_FRACTION;
+
+  @Test
+  public void fixedAndFractionalColumns() {
+    // 50px, auto, 1fr, 3fr
+    final GridSolver g = row(100, 30, 10, 10);
+    g.setColumnSizes(new int[] {FIXED, AUTO, FRACTION, FRACTION},
+                     new float[] {50, 0, 1, 3});
+    g.computeTrackSizes();
+
+    assertTrue(g.hasDeclaredWidth(0));
+    assertFalse(g.hasDeclaredWidth(1));
+    assertTrue(g.hasDeclaredWidth(2));
+    assertEquals(50, g.getFixedWidth(0));
+    assertEquals(-1, g.getFixedWidth(2));
+    assertTrue(g.hasFractionalColumns());
+    assertFalse(g.hasFractionalRows());
+
+    // Fractions ask for nothing; cell 0 doesn't widen its column.
+    assertEquals(80, g.getPreferredWidth());
+    g.distribute(200, 10);
+    assertWidths(g, 50, 30, 30, 90);
+
+    // No room to spare:  the fractions get nothing.
+    g.distribute(60, 10);
+    assertWidths(g, 50, 30, 0, 0);
+  }
+
+  @Test
+  public void fractionsTakeTheExcessFromWeights() {
+    final GridSolver g = row(10, 10);
+    g.setCellParams(0, 1, 0, GridSolver.FILL);
+    g.setColumnSizes(new int[] {AUTO, FRACTION}, new float[] {0, 1});
+    g.computeTrackSizes();
+    g.distribute(100, 10);
+    assertWidths(g, 10, 90);
+  }
+
+  @Test
+  public void weightsApplyWithoutFractions() {
+    final GridSolver g = row(10, 10, 10);
+    g.setCellParams(0, 1, 0, GridSolver.FILL);
+    g.setCellParams(1, 1, 0, GridSolver.FILL);
+    g.setColumnSizes(new int[] {AUTO, FIXED, AUTO}, new float[] {0, 20, 0});
+    g.computeTrackSizes();
+    assertEquals(40, g.getPreferredWidth());
+    g.distribute(100, 10);
+    assertWidths(g, 70, 20, 10);
+  }
+
+  @Test
+  public void lastSizeRepeats() {
+    final GridSolver g = row(5, 5, 5);
+    g.setColumnSizes(new int[] {FIXED}, new float[] {25});
+    g.computeTrackSizes();
+    assertEquals(75, g.getPreferredWidth());
+    g.distribute(200, 10);
+    assertWidths(g, 25, 25, 25);
+
+    // And back to sizing from the cells
+    g.setColumnSizes(null, null);
+    g.computeTrackSizes();
+    assertEquals(15, g.getPreferredWidth());
+  }
+
+  @Test
+  public void declaredRowsAndColumns() {
+    // 2x2:  fixed column and row, and an auto column and row.
+    final GridSolver g = grid(2, 2);
+    for( int i = 0; i < 4; ++i ) g.setPreferredSize(i, 12, 8);
+    g.setColumnSizes(new int[] {FIXED, AUTO}, new float[] {30, 0});
+    g.setRowSizes(new int[] {AUTO, FIXED}, new float[] {0, 20});
+    g.computeTrackSizes();
+    assertTrue(g.isDeclared(2));        // column 0, row 1
+    assertFalse(g.isDeclared(0));
+    assertFalse(g.isDeclared(3));
+    assertEquals(30 + 12, g.getPreferredWidth());
+    assertEquals(8 + 20, g.getPreferredHeight());
+    assertEquals(30, g.getFixedWidth(2));
+    assertEquals(20, g.getFixedHeight(2));
+    assertEquals(-1, g.getFixedHeight(0));
+  }
+
+  @Test
+  public void minimumsRaiseTracks() {
+    final GridSolver g = row(30, 20, 10);
+    g.computeTrackSizes();
+    final int[] mins = {40, 0, 25};
+    g.setMinColumnWidths(mins, 3);
+    assertEquals(85, g.getPreferredWidth());
+    g.distribute(85, 10);
+    assertWidths(g, 40, 20, 25);
+
+    // The track's own preference is unchanged.
+    assertEquals(30, g.getPreferredColumnWidth(0));
+    assertEquals(10, g.getPreferredColumnWidth(2));
+
+    // The array isn't copied; setting it again picks up the change.
+    mins[0] = 0;
+    g.setMinColumnWidths(mins, 3);
+    g.distribute(85, 10);
+    assertWidths(g, 30, 20, 25);
+
+    // Only the first n count.
+    mins[2] = 50;
+    g.setMinColumnWidths(mins, 2);
+    assertEquals(60, g.getPreferredWidth());
+
+    g.setMinColumnWidths(null, 0);
+    g.distribute(60, 10);
+    assertWidths(g, 30, 20, 10);
+  }
+
+  @Test
+  public void minimumsUnderDeclaredSizes() {
+    final GridSolver g = row(10, 10);
+    g.setColumnSizes(new int[] {AUTO, FIXED}, new float[] {0, 15});
+    g.setMinColumnWidths(new int[] {40, 40}, 2);
+    g.computeTrackSizes();
+    // An auto column takes the minimum; a fixed one keeps its size.
+    assertEquals(55, g.getPreferredWidth());
+    g.distribute(55, 10);
+    assertWidths(g, 40, 15);
+  }
+
+  @Test
+  public void minimumRows() {
+    final GridSolver g = grid(1, 3);
+    for( int i = 0; i < 3; ++i ) g.setPreferredSize(i, 10, 10);
+    g.computeTrackSizes();
+    g.setMinRowHeights(new int[] {0, 30}, 2);
+    assertEquals(50, g.getPreferredHeight());
+    g.distribute(10, 50);
+    assertEquals(30, g.getRowHeight(1));
+    assertEquals(10, g.getRowHeight(2));
+  }
+
+  /*
+   * measure_once:  with the columns declared, distributeWidth() gives
+   * the cell widths before any cell's height is known.  The heights,
+   * which depend on those widths, then mustn't change the columns, and
+   * the result is the same as a solver given everything at once.
+   */
+  @Test
+  public void columnsSettleBeforeRows() {
+    final int[] kinds = {FIXED, FRACTION, FRACTION};
+    final float[] sizes = {40, 1, 2};
+    final GridSolver g = grid(3, 2);
+    g.setColumnSizes(kinds, sizes);
+    g.setCell(5, 0, 2, 3, 1);           // spans all three
+    g.countCells();
+    for( int i = 0; i < 6; ++i ) g.setPreferredSize(i, 0, 0);
+    g.computeTrackSizes();
+    g.distributeWidth(220);
+    final int[] widths = new int[6];
+    for( int i = 0; i < 6; ++i ) {
+      assertTrue("cell " + i, g.hasDeclaredWidth(i));
+      widths[i] = g.getCellWidth(i);
+    }
+    assertEquals(40, widths[0]);
+    assertEquals(60, widths[1]);
+    assertEquals(120, widths[2]);
+    assertEquals(220, widths[5]);
+
+    // Text-like cells:  the narrower, the taller.
+    for( int i = 0; i < 6; ++i ) g.setPreferredSize(i, 35, 2400 / widths[i]);
+    g.computeTrackSizes();
+    g.distribute(220, 200);
+    for( int i = 0; i < 6; ++i )
+      assertEquals("cell " + i, widths[i], g.getCellWidth(i));
+
+    final GridSolver f = grid(3, 2);
+    f.setColumnSizes(kinds, sizes);
+    f.setCell(5, 0, 2, 3, 1);
+    f.countCells();
+    for( int i = 0; i < 6; ++i ) f.setPreferredSize(i, 35, 2400 / widths[i]);
+    f.computeTrackSizes();
+    f.distribute(220, 200);
+    for( int c = 0; c < 3; ++c )
+      assertEquals("column " + c, f.getColumnWidth(c), g.getColumnWidth(c));
+    for( int r = 0; r < 3; ++r )
+      assertEquals("row " + r, f.getRowHeight(r), g.getRowHeight(r));
+    assertEquals(60, g.getRowHeight(0));        // 2400 / 40
+  }
+
+  // One row of cells of the given widths, 10 high
+  private static GridSolver row(int... widths) {
+    final GridSolver g = grid(widths.length, 1);
+    for( int i = 0; i < widths.length; ++i )
+      g.setPreferredSize(i, widths[i], 10);
+    return g;
+  }
+
+  // ncol x nrow cells of 1x1, by rows, counted
+  private static GridSolver grid(int ncol, int nrow) {
+    final GridSolver g = new GridSolver();
+    g.setCellCount(ncol * nrow);
+    for( int i = 0; i < ncol * nrow; ++i )
+      g.setCell(i, i % ncol, i / ncol, 1, 1);
+    g.countCells();
+    return g;
+  }
+
+  private static void assertWidths(GridSolver g, int... widths) {
+    for( int c = 0; c < widths.length; ++c )
+      assertEquals("column " + c, widths[c], g.getColumnWidth(c));
+  }
+}
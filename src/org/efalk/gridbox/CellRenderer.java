@@ -0,0 +1,145 @@
+/**
+ * CellRenderer.java - measures and draws a Gridbox's DrawnCells
+ *
+ * Author: Edward A. Falk
+ *         efalk@users.sourceforge.net
+ *
+ *
+ */
+
+package org.efalk.gridbox;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+
+/**
+ * Measures and draws the cells in a Gridbox's DrawnCells.  This one
+ * draws each cell's drawable, if any, followed by its text.  Text on
+ * one line is measured with Paint.measureText() and drawn directly;
+ * text with line breaks gets a StaticLayout, kept in the cell until
+ * the text changes.  Subclass and override measure() and draw() to
+ * draw cells some other way.
+ *
+ * Gridbox only measures a cell when its content has changed, and only
+ * draws the cells in view.  After changing the paint, pass the
+ * renderer to Gridbox.setCellRenderer() again so that every cell is
+ * measured again.
+ */
+public class CellRenderer {
+
+  protected final TextPaint paint;
+  protected int padding;                // Around the content
+  protected int gap;                    // Between drawable and text
+  private final Paint.FontMetricsInt fm = new Paint.FontMetricsInt();
+
+  /**
+   * Draw with the given paint, leaving 'padding' pixels around the
+   * content of each cell.
+   */
+  public CellRenderer(TextPaint paint, int padding) {
+    this.paint = paint;
+    this.padding = padding;
+    this.gap = padding;
+  }
+
+  public TextPaint getPaint() {
+    return paint;
+  }
+
+  /**
+   * Find the size cell i would like to be, and leave it in size[0]
+   * (width) and size[1] (height).  Anything worth keeping for draw(),
+   * such as a text layout, may be left with cells.setLayout().
+   */
+  public void measure(DrawnCells cells, int i, int[] size) {
+    final CharSequence text = cells.getText(i);
+    final Drawable d = cells.getDrawable(i);
+    int w = 0, h = 0;
+    if( text != null && text.length() > 0 ) {
+      if( multiline(text) ) {
+	final StaticLayout l = layout(text,
+	    (int) Math.ceil(Layout.getDesiredWidth(text, paint)));
+	cells.setLayout(i, l);
+	w = l.getWidth();
+	h = l.getHeight();
+      } else {
+	w = (int) Math.ceil(paint.measureText(text, 0, text.length()));
+	paint.getFontMetricsInt(fm);
+	h = fm.bottom - fm.top;
+      }
+    }
+    if( d != null ) {
+      if( w > 0 ) w += gap;
+      w += d.getIntrinsicWidth();
+      h = Math.max(h, d.getIntrinsicHeight());
+    }
+    size[0] = w + 2 * padding;
+    size[1] = h + 2 * padding;
+  }
+
+  /**
+   * Draw cell i within the given frame.  The frame has already been
+   * placed in the cell according to the cell's gravity.
+   */
+  public void draw(Canvas canvas, DrawnCells cells, int i,
+    int left, int top, int right, int bottom)
+  {
+    int x = left + padding;
+    final int y = top + padding;
+    final int h = bottom - top - 2 * padding;
+    final Drawable d = cells.getDrawable(i);
+    if( d != null ) {
+      final int dw = d.getIntrinsicWidth();
+      final int dh = d.getIntrinsicHeight();
+      final int dy = y + (h - dh) / 2;
+      d.setBounds(x, dy, x + dw, dy + dh);
+      d.draw(canvas);
+      x += dw + gap;
+    }
+
+    final CharSequence text = cells.getText(i);
+    if( text == null || text.length() == 0 ) return;
+    // The paint is shared by every cell (and by a StaticLayout made
+    // with it), so a cell's own color only lasts while it's drawn.
+    final int color = cells.getTextColor(i);
+    final int saved = paint.getColor();
+    if( color != 0 ) paint.setColor(color);
+    final Object l = cells.getLayout(i);
+    if( l instanceof Layout ) {
+      final Layout layout = (Layout) l;
+      final int save = canvas.save();
+      canvas.translate(x, y + (h - layout.getHeight()) / 2);
+      layout.draw(canvas);
+      canvas.restoreToCount(save);
+    } else {
+      paint.getFontMetricsInt(fm);
+      final int base = y + (h - (fm.bottom - fm.top)) / 2 - fm.top;
+      canvas.drawText(text, 0, text.length(), x, base, paint);
+    }
+    if( color != 0 ) paint.setColor(saved);
+  }
+
+  @SuppressWarnings("deprecation")
+  private StaticLayout layout(CharSequence text, int width) {
+    if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.M )
+      return StaticLayout.Builder.obtain(text, 0, text.length(), paint, width)
+	.setAlignment(Layout.Alignment.ALIGN_NORMAL)
+	.setLineSpacing(0, 1)
+	.setIncludePad(false)
+	.build();
+    // The constructor is all there is before API 23
+    return new StaticLayout(text, paint, width,
+	Layout.Alignment.ALIGN_NORMAL, 1, 0, false);
+  }
+
+  private static boolean multiline(CharSequence text) {
+    for( int k = 0; k < text.length(); ++k )
+      if( text.charAt(k) == '\n' ) return true;
+    return false;
+  }
+}
@@ -0,0 +1,220 @@
+/**
+ * DrawnCells.java - cells a Gridbox draws itself, without views
+ *
+ * Author: Edward A. Falk
+ *         efalk@users.sourceforge.net
+ *
+ *
+ */
+
+package org.efalk.gridbox;
+
+import java.util.Arrays;
+
+import android.graphics.drawable.Drawable;
+import android.view.Gravity;
+
+/**
+ * Cells which the Gridbox draws itself with its CellRenderer, instead
+ * of having a child view for each one.  Meant for read-only tables of
+ * text and icons, where thousands of TextViews would cost far more
+ * than the text.  Get one with Gridbox.getDrawnCells().
+ *
+ * The cells are kept column-wise, one array per property, and are
+ * identified by index, 0 ... size()-1.  Each has a position, span,
+ * weights and gravity, with the same meanings as a child's
+ * LayoutParams, and a text and/or drawable.  They take part in sizing
+ * the rows and columns just as children do, and children may share
+ * the grid with them, e.g. for the cells which need to be interactive.
+ *
+ * Each cell's measured size is kept until its content changes, so
+ * the renderer only measures text once.
+ */
+public final class DrawnCells {
+
+  private final Gridbox owner;
+  private int n = 0;
+
+  int[] gridx = new int[0], gridy = new int[0];
+  int[] colSpan = new int[0], rowSpan = new int[0];
+  float[] weightx = new float[0], weighty = new float[0];
+  int[] gravity = new int[0];
+  private CharSequence[] text = new CharSequence[0];
+  private Drawable[] drawable = new Drawable[0];
+  private int[] color = new int[0];
+
+  // Measure cache; see Gridbox.measureDrawn()
+  boolean[] measured = new boolean[0];
+  int[] width = new int[0], height = new int[0];
+  private Object[] layout = new Object[0];      // Renderer's, e.g. StaticLayout
+
+  DrawnCells(Gridbox owner) {
+    this.owner = owner;
+  }
+
+  public int size() {
+    return n;
+  }
+
+  /**
+   * Add a cell showing the given text, at (col,row), which may be -1
+   * to place it the way a child without a position would be.  Returns
+   * its index.
+   */
+  public int add(int col, int row, CharSequence s) {
+    if( n == gridx.length ) grow(Math.max(16, n * 2));
+    final int i = n++;
+    gridx[i] = col;
+    gridy[i] = row;
+    colSpan[i] = rowSpan[i] = 1;
+    weightx[i] = weighty[i] = 0;
+    gravity[i] = Gravity.NO_GRAVITY;
+    text[i] = s;
+    drawable[i] = null;
+    color[i] = 0;
+    measured[i] = false;
+    layout[i] = null;
+    owner.requestLayout();
+    return i;
+  }
+
+  /** Remove all the cells. */
+  public void clear() {
+    for( int i = 0; i < n; ++i ) release(drawable[i]);
+    Arrays.fill(text, 0, n, null);
+    Arrays.fill(drawable, 0, n, null);
+    Arrays.fill(layout, 0, n, null);
+    n = 0;
+    owner.requestLayout();
+  }
+
+  public void setText(int i, CharSequence s) {
+    text[i] = s;
+    changed(i);
+  }
+
+  public CharSequence getText(int i) {
+    return text[i];
+  }
+
+  /**
+   * Set a drawable, shown at its intrinsic size before the text.  The
+   * Gridbox becomes its callback, so that an animated drawable is
+   * redrawn, and gives it its own drawable state.  The drawable it
+   * replaces is let go.
+   */
+  public void setDrawable(int i, Drawable d) {
+    if( drawable[i] != d ) release(drawable[i]);
+    drawable[i] = d;
+    if( d != null ) {
+      d.setCallback(owner);
+      if( d.isStateful() ) d.setState(owner.getDrawableState());
+    }
+    changed(i);
+  }
+
+  public Drawable getDrawable(int i) {
+    return drawable[i];
+  }
+
+  /** Set the text color; 0 means the renderer's. */
+  public void setTextColor(int i, int c) {
+    color[i] = c;
+    owner.invalidate();
+  }
+
+  public int getTextColor(int i) {
+    return color[i];
+  }
+
+  public void setPosition(int i, int col, int row) {
+    gridx[i] = col;
+    gridy[i] = row;
+    owner.requestLayout();
+  }
+
+  public void setSpan(int i, int cols, int rows) {
+    colSpan[i] = cols;
+    rowSpan[i] = rows;
+    owner.requestLayout();
+  }
+
+  public void setWeights(int i, float wx, float wy) {
+    weightx[i] = wx;
+    weighty[i] = wy;
+    owner.requestLayout();
+  }
+
+  public void setGravity(int i, int g) {
+    gravity[i] = g;
+    owner.requestLayout();
+  }
+
+  public int getGridx(int i) { return gridx[i]; }
+  public int getGridy(int i) { return gridy[i]; }
+  public int getColSpan(int i) { return colSpan[i]; }
+  public int getRowSpan(int i) { return rowSpan[i]; }
+
+  /**
+   * Whatever the renderer made of the cell's content when measuring
+   * it, such as a StaticLayout, for it to draw with.  Dropped when the
+   * content changes.
+   */
+  public Object getLayout(int i) {
+    return layout[i];
+  }
+
+  public void setLayout(int i, Object l) {
+    layout[i] = l;
+  }
+
+  // The content of cell i changed; it has to be measured again.
+  private void changed(int i) {
+    measured[i] = false;
+    layout[i] = null;
+    owner.requestLayout();
+  }
+
+  // Give the stateful drawables the Gridbox's state.  Returns true if
+  // any of them changed.
+  boolean applyState(int[] state) {
+    boolean changed = false;
+    for( int i = 0; i < n; ++i ) {
+      final Drawable d = drawable[i];
+      if( d != null && d.isStateful() && d.setState(state) ) changed = true;
+    }
+    return changed;
+  }
+
+  void jumpToCurrentState() {
+    for( int i = 0; i < n; ++i )
+      if( drawable[i] != null ) drawable[i].jumpToCurrentState();
+  }
+
+  private void release(Drawable d) {
+    if( d != null && d.getCallback() == owner ) d.setCallback(null);
+  }
+
+  // The renderer changed; everybody has to be measured again.
+  void invalidateSizes() {
+    Arrays.fill(measured, 0, n, false);
+    Arrays.fill(layout, 0, n, null);
+  }
+
+  private void grow(int cap) {
+    gridx = Arrays.copyOf(gridx, cap);
+    gridy = Arrays.copyOf(gridy, cap);
+    colSpan = Arrays.copyOf(colSpan, cap);
+    rowSpan = Arrays.copyOf(rowSpan, cap);
+    weightx = Arrays.copyOf(weightx, cap);
+    weighty = Arrays.copyOf(weighty, cap);
+    gravity = Arrays.copyOf(gravity, cap);
+    text = Arrays.copyOf(text, cap);
+    drawable = Arrays.copyOf(drawable, cap);
+    color = Arrays.copyOf(color, cap);
+    measured = Arrays.copyOf(measured, cap);
+    width = Arrays.copyOf(width, cap);
+    height = Arrays.copyOf(height, cap);
+    layout = Arrays.copyOf(layout, cap);
+  }
+}
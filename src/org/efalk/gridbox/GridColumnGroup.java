@@ -0,0 +1,29 @@
+/**
+ * GridColumnGroup.java - columns lined up across Gridboxes
+ *
+ * Author: Edward A. Falk
+ *         efalk@users.sourceforge.net
+ *
+ *
+ */
+
+package org.efalk.gridbox;
+
+import org.efalk.gridbox.core.GridSolver;
+
+/**
+ * Gridboxes whose columns are the same widths; see GridTrackGroup and
+ * Gridbox.setColumnGroup().
+ */
+public final class GridColumnGroup extends GridTrackGroup {
+
+  @Override
+  int count(GridSolver solver) {
+    return solver.getColumnCount();
+  }
+
+  @Override
+  int size(GridSolver solver, int t) {
+    return solver.getPreferredColumnWidth(t);
+  }
+}
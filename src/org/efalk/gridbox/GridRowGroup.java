@@ -0,0 +1,29 @@
+/**
+ * GridRowGroup.java - rows lined up across Gridboxes
+ *
+ * Author: Edward A. Falk
+ *         efalk@users.sourceforge.net
+ *
+ *
+ */
+
+package org.efalk.gridbox;
+
+import org.efalk.gridbox.core.GridSolver;
+
+/**
+ * Gridboxes whose rows are the same heights; see GridTrackGroup and
+ * Gridbox.setRowGroup().
+ */
+public final class GridRowGroup extends GridTrackGroup {
+
+  @Override
+  int count(GridSolver solver) {
+    return solver.getRowCount();
+  }
+
+  @Override
+  int size(GridSolver solver, int t) {
+    return solver.getPreferredRowHeight(t);
+  }
+}
@@ -0,0 +1,274 @@
+/**
+ * GridTemplate.java - a grid layout worked out once, for many Gridboxes
+ *
+ * Author: Edward A. Falk
+ *         efalk@users.sourceforge.net
+ *
+ *
+ */
+
+package org.efalk.gridbox;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.content.res.XmlResourceParser;
+import android.util.DisplayMetrics;
+import android.view.Gravity;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import org.efalk.gridbox.core.GridSolver;
+
+/**
+ * The layout of a grid's cells, worked out once and shared by any
+ * number of Gridboxes:  each cell's position, span, weights, gravity
+ * and margins, and the declared row and column sizes.  Cells without
+ * a position are placed when the template is built, so Gridboxes
+ * using it never have to.  The grid size, the cells' order by span
+ * and the index from grid coordinates to cells are likewise worked
+ * out when it's built.  Each Gridbox whose children all match the
+ * template's cells shares the order and index rather than copying
+ * them, until its own cells change.  Templates can't be changed once
+ * built, so they can be shared between threads.
+ *
+ * Build one with a Builder, or from a layout resource with inflate().
+ * Give it to a Gridbox with Gridbox.setTemplate(); child i then takes
+ * the layout of cell i, whatever its own LayoutParams say, so the
+ * children can be added with plain LayoutParams and no attributes to
+ * parse.
+ */
+public final class GridTemplate {
+
+  private final int n;
+  private final int[] gridx, gridy, colSpan, rowSpan, gravity;
+  private final float[] weightx, weighty;
+  private final int[] margins;          // left, top, right, bottom per cell
+  private final int ncol, nrow;
+  final int[] col_kinds, row_kinds;     // null if none
+  final float[] col_sizes, row_sizes;
+  final GridSolver shape;               // The cells, counted
+
+  private GridTemplate(Builder b) {
+    n = b.n;
+    gridx = Arrays.copyOf(b.gridx, n);
+    gridy = Arrays.copyOf(b.gridy, n);
+    colSpan = Arrays.copyOf(b.colSpan, n);
+    rowSpan = Arrays.copyOf(b.rowSpan, n);
+    gravity = Arrays.copyOf(b.gravity, n);
+    weightx = Arrays.copyOf(b.weightx, n);
+    weighty = Arrays.copyOf(b.weighty, n);
+    margins = Arrays.copyOf(b.margins, n * 4);
+    col_kinds = b.col_kinds;
+    col_sizes = b.col_sizes;
+    row_kinds = b.row_kinds;
+    row_sizes = b.row_sizes;
+
+    // Place the cells which need it, as a Gridbox would
+    final GridSolver solver = shape = new GridSolver();
+    solver.setAutoPlacement(b.placement, b.auto_cols);
+    solver.setCellCount(n);
+    for( int i = 0; i < n; ++i )
+      solver.setCell(i, gridx[i], gridy[i], colSpan[i], rowSpan[i]);
+    solver.countCells();
+    solver.prepareShape();
+    for( int i = 0; i < n; ++i ) {
+      gridx[i] = solver.getGridx(i);
+      gridy[i] = solver.getGridy(i);
+      colSpan[i] = solver.getColSpan(i);
+      rowSpan[i] = solver.getRowSpan(i);
+    }
+    ncol = solver.getColumnCount();
+    nrow = solver.getRowCount();
+  }
+
+  /** Number of cells. */
+  public int size() { return n; }
+
+  public int getColumnCount() { return ncol; }
+  public int getRowCount() { return nrow; }
+
+  public int getGridx(int i) { return gridx[i]; }
+  public int getGridy(int i) { return gridy[i]; }
+  public int getColSpan(int i) { return colSpan[i]; }
+  public int getRowSpan(int i) { return rowSpan[i]; }
+  public int getGravity(int i) { return gravity[i]; }
+  public float getWeightx(int i) { return weightx[i]; }
+  public float getWeighty(int i) { return weighty[i]; }
+
+  // Give a child the layout of cell i, if there is one
+  void bind(int i, Gridbox.LayoutParams lp) {
+    if( i >= n ) return;
+    lp.gridx = gridx[i];
+    lp.gridy = gridy[i];
+    lp.colSpan = colSpan[i];
+    lp.rowSpan = rowSpan[i];
+    lp.gravity = gravity[i];
+    lp.weightx = weightx[i];
+    lp.weighty = weighty[i];
+    lp.leftMargin = margins[i*4];
+    lp.topMargin = margins[i*4 + 1];
+    lp.rightMargin = margins[i*4 + 2];
+    lp.bottomMargin = margins[i*4 + 3];
+  }
+
+  /**
+   * Build a template from a layout resource whose root is a Gridbox:
+   * its gridbox:auto_placement, auto_columns, column_sizes and
+   * row_sizes attributes, and the layout attributes of each of its
+   * children in turn.  Nothing is inflated.  Throws
+   * IllegalArgumentException if the resource can't be read.
+   */
+  public static GridTemplate inflate(Context ctx, int layout) {
+    final Builder b = new Builder();
+    final XmlResourceParser parser = ctx.getResources().getLayout(layout);
+    try {
+      int depth = 0;
+      int type;
+      while( (type = parser.next()) != XmlPullParser.END_DOCUMENT ) {
+	if( type == XmlPullParser.END_TAG ) --depth;
+	if( type != XmlPullParser.START_TAG ) continue;
+	if( ++depth == 1 ) {
+	  final TypedArray a =
+	    ctx.obtainStyledAttributes(parser, R.styleable.Gridbox);
+	  final DisplayMetrics dm = ctx.getResources().getDisplayMetrics();
+	  b.setAutoPlacement(
+	      a.getInt(R.styleable.Gridbox_auto_placement, Gridbox.PLACE_NEXT),
+	      a.getInt(R.styleable.Gridbox_auto_columns, 0));
+	  String[] tokens =
+	    Gridbox.trackTokens(a.getString(R.styleable.Gridbox_column_sizes));
+	  if( tokens != null ) {
+	    final int[] kinds = new int[tokens.length];
+	    b.setColumnSizes(kinds, Gridbox.parseTrackSizes(tokens, dm, kinds));
+	  }
+	  tokens =
+	    Gridbox.trackTokens(a.getString(R.styleable.Gridbox_row_sizes));
+	  if( tokens != null ) {
+	    final int[] kinds = new int[tokens.length];
+	    b.setRowSizes(kinds, Gridbox.parseTrackSizes(tokens, dm, kinds));
+	  }
+	  a.recycle();
+	}
+	else if( depth == 2 )
+	  b.addCell(new Gridbox.LayoutParams(ctx, parser));
+      }
+    } catch( XmlPullParserException e ) {
+      throw new IllegalArgumentException("GridTemplate: can't read layout", e);
+    } catch( IOException e ) {
+      throw new IllegalArgumentException("GridTemplate: can't read layout", e);
+    } finally {
+      parser.close();
+    }
+    return b.build();
+  }
+
+  /**
+   * Collects the cells of a template.  addCell() starts a new cell;
+   * the other cell setters apply to the last one added, and throw
+   * IllegalStateException if there isn't one.
+   */
+  public static final class Builder {
+    private int n = 0;
+    private int[] gridx = new int[16], gridy = new int[16];
+    private int[] colSpan = new int[16], rowSpan = new int[16];
+    private int[] gravity = new int[16];
+    private float[] weightx = new float[16], weighty = new float[16];
+    private int[] margins = new int[64];
+    private int placement = Gridbox.PLACE_NEXT, auto_cols = 0;
+    private int[] col_kinds = null, row_kinds = null;
+    private float[] col_sizes = null, row_sizes = null;
+
+    /**
+     * Add a cell at (gridx,gridy), either of which may be -1 to have
+     * it placed, with the given span.
+     */
+    public Builder addCell(int gridx, int gridy, int colSpan, int rowSpan) {
+      if( n == this.gridx.length ) grow(n * 2);
+      this.gridx[n] = gridx;
+      this.gridy[n] = gridy;
+      this.colSpan[n] = colSpan;
+      this.rowSpan[n] = rowSpan;
+      gravity[n] = Gravity.NO_GRAVITY;
+      weightx[n] = weighty[n] = 0;
+      Arrays.fill(margins, n*4, n*4 + 4, 0);
+      ++n;
+      return this;
+    }
+
+    /** Add a cell laid out as a child with these LayoutParams would be. */
+    public Builder addCell(Gridbox.LayoutParams lp) {
+      addCell(lp.gridx, lp.gridy, lp.colSpan, lp.rowSpan);
+      setGravity(lp.gravity);
+      setWeights(lp.weightx, lp.weighty);
+      return setMargins(lp.leftMargin, lp.topMargin,
+			lp.rightMargin, lp.bottomMargin);
+    }
+
+    public Builder setGravity(int g) {
+      gravity[last()] = g;
+      return this;
+    }
+
+    public Builder setWeights(float wx, float wy) {
+      final int i = last();
+      weightx[i] = wx;
+      weighty[i] = wy;
+      return this;
+    }
+
+    public Builder setMargins(int left, int top, int right, int bottom) {
+      final int k = last() * 4;
+      margins[k] = left;
+      margins[k + 1] = top;
+      margins[k + 2] = right;
+      margins[k + 3] = bottom;
+      return this;
+    }
+
+    /** How to place cells without a position; see Gridbox.setAutoPlacement(). */
+    public Builder setAutoPlacement(int mode, int columns) {
+      placement = mode;
+      auto_cols = columns;
+      return this;
+    }
+
+    /** Declare the column widths; see Gridbox.setColumnSizes(). */
+    public Builder setColumnSizes(int[] kinds, float[] sizes) {
+      col_kinds = kinds == null ? null : kinds.clone();
+      col_sizes = sizes == null ? null : sizes.clone();
+      return this;
+    }
+
+    public Builder setRowSizes(int[] kinds, float[] sizes) {
+      row_kinds = kinds == null ? null : kinds.clone();
+      row_sizes = sizes == null ? null : sizes.clone();
+      return this;
+    }
+
+    public GridTemplate build() {
+      return new GridTemplate(this);
+    }
+
+    // The cell the setters apply to
+    private int last() {
+      if( n == 0 )
+        throw new IllegalStateException(
+            "GridTemplate: no cell yet; call addCell() first");
+      return n - 1;
+    }
+
+    private void grow(int cap) {
+      gridx = Arrays.copyOf(gridx, cap);
+      gridy = Arrays.copyOf(gridy, cap);
+      colSpan = Arrays.copyOf(colSpan, cap);
+      rowSpan = Arrays.copyOf(rowSpan, cap);
+      gravity = Arrays.copyOf(gravity, cap);
+      weightx = Arrays.copyOf(weightx, cap);
+      weighty = Arrays.copyOf(weighty, cap);
+      margins = Arrays.copyOf(margins, cap * 4);
+    }
+  }
+}
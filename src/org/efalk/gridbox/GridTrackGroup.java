@@ -0,0 +1,167 @@
+/**
+ * GridTrackGroup.java - rows or columns lined up across Gridboxes
+ *
+ * Author: Edward A. Falk
+ *         efalk@users.sourceforge.net
+ *
+ *
+ */
+
+package org.efalk.gridbox;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.efalk.gridbox.core.GridSolver;
+
+/**
+ * A set of Gridboxes whose columns (GridColumnGroup) or rows
+ * (GridRowGroup) are sized together, e.g. the rows of a ListView each
+ * drawn by its own Gridbox.  Column t of every member is as wide as
+ * the widest column t any member would have on its own.
+ *
+ * Each member reports its own preferred track sizes when it's
+ * measured.  The group keeps the maximum of each track over all the
+ * members, and how many members ask for exactly that, so a member
+ * changing size usually only costs a comparison per track; the other
+ * members are only scanned when the last one asking for a maximum
+ * shrinks or leaves.  When a maximum changes, the members whose
+ * tracks that actually changes are asked to lay out again, and no
+ * others.  They're asked once the current measure is over, not in the
+ * middle of it.
+ */
+public abstract class GridTrackGroup {
+
+  // Each member's own track sizes
+  private final IdentityHashMap<Gridbox, int[]> own =
+    new IdentityHashMap<Gridbox, int[]>();
+  int[] shared = new int[0];            // Maximum over the members
+  private int[] nshared = new int[0];   // Members asking for exactly that
+  int ntracks = 0;
+  int gen = 0;                          // Counts changes to shared[]
+
+  // Tracks whose maximum changed in the current update, with the old
+  // maximum.
+  private int[] changed = new int[0], before = new int[0];
+  private int nchanged;
+
+  GridTrackGroup() {
+  }
+
+  /** The member's number of tracks along this group's axis. */
+  abstract int count(GridSolver solver);
+
+  /** The member's own preferred size for track t. */
+  abstract int size(GridSolver solver, int t);
+
+  /** Number of Gridboxes in the group. */
+  public int getMemberCount() {
+    return own.size();
+  }
+
+  /** The shared size of track t, including margins. */
+  public int getSize(int t) {
+    return t < ntracks ? shared[t] : 0;
+  }
+
+  void join(Gridbox g) {
+    if( !own.containsKey(g) ) own.put(g, new int[0]);
+  }
+
+  void leave(Gridbox g) {
+    final int[] mine = own.remove(g);
+    if( mine == null ) return;
+    nchanged = 0;
+    for( int t = 0; t < mine.length; ++t ) set(mine, t, 0);
+    publish(null);
+  }
+
+  /**
+   * Member g has computed its track sizes; merge them in.  Any other
+   * members whose tracks change as a result are asked to lay out.
+   */
+  void update(Gridbox g, GridSolver solver) {
+    int[] mine = own.get(g);
+    if( mine == null ) return;
+    final int n = count(solver);
+    if( mine.length < n ) {
+      mine = Arrays.copyOf(mine, n);
+      own.put(g, mine);
+    }
+    if( n > ntracks ) {
+      if( n > shared.length ) {
+	final int cap = Math.max(n, shared.length * 2);
+	shared = Arrays.copyOf(shared, cap);
+	nshared = Arrays.copyOf(nshared, cap);
+      }
+      ntracks = n;
+    }
+    nchanged = 0;
+    for( int t = 0; t < mine.length; ++t )
+      set(mine, t, t < n ? size(solver, t) : 0);
+    publish(g);
+  }
+
+  // Member's track t changes to w
+  private void set(int[] mine, int t, int w) {
+    final int ow = mine[t];
+    if( w == ow ) return;
+    mine[t] = w;
+    final int max = shared[t];
+    if( w > max ) {
+      shared[t] = w;
+      nshared[t] = 1;
+    }
+    else if( w == max ) ++nshared[t];
+    else if( ow == max && --nshared[t] == 0 ) rescan(t);
+    if( shared[t] != max ) {
+      if( nchanged == changed.length ) {
+	changed = Arrays.copyOf(changed, Math.max(8, nchanged * 2));
+	before = Arrays.copyOf(before, changed.length);
+      }
+      changed[nchanged] = t;
+      before[nchanged++] = max;
+    }
+  }
+
+  // Find the maximum of track t again, the hard way
+  private void rescan(int t) {
+    int max = 0, count = 0;
+    for( int[] sizes : own.values() ) {
+      final int w = t < sizes.length ? sizes[t] : 0;
+      if( w > max ) {
+	max = w;
+	count = 1;
+      }
+      else if( w == max ) ++count;
+    }
+    shared[t] = max;
+    nshared[t] = count;
+  }
+
+  /*
+   * Some maxima changed.  A member's track is the larger of its own
+   * size and the maximum, so it only changes if its own size is below
+   * the old or new maximum.  Those members, other than the one
+   * already being measured, lay out again.
+   */
+  private void publish(Gridbox source) {
+    if( nchanged == 0 ) return;
+    ++gen;
+    for( Map.Entry<Gridbox, int[]> e : own.entrySet() ) {
+      final Gridbox g = e.getKey();
+      if( g == source ) continue;
+      final int[] mine = e.getValue();
+      for( int c = 0; c < nchanged; ++c ) {
+	final int t = changed[c];
+	final int w = t < mine.length ? mine[t] : 0;
+	if( Math.max(w, before[c]) != Math.max(w, shared[t]) ) {
+	  g.groupChanged();
+	  break;
+	}
+      }
+    }
+    nchanged = 0;
+  }
+}
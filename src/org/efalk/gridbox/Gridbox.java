@@ -13,15 +13,37 @@
 
 package org.efalk.gridbox;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
 
+import android.animation.LayoutTransition;
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.database.DataSetObserver;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+import android.text.TextPaint;
 import android.util.AttributeSet;
-import android.util.Log;
+import android.util.DisplayMetrics;
+import android.util.SparseArray;
 import android.view.Gravity;
+import android.view.MotionEvent;
+import android.view.VelocityTracker;
 import android.view.View;
+import android.view.ViewConfiguration;
 import android.view.ViewGroup;
+import android.view.ViewParent;
+import android.view.ViewTreeObserver;
+import android.view.animation.Animation;
+import android.widget.OverScroller;
+
+import org.efalk.gridbox.core.GridSolver;
 
 /**
  * The Gridbox widget aligns its children in a rectangular array of cells.
@@ -49,6 +71,20 @@ import android.view.ViewGroup;
  *      gridbox:inner_margin            Margin between children
  *      gridbox:force_uniform_width     boolean; all columns same width
  *      gridbox:force_uniform_height    boolean; all rows same height
+ *      gridbox:scrollable              boolean; scroll in both directions
+ *      gridbox:frozen_rows             rows which don't scroll vertically
+ *      gridbox:frozen_columns          columns which don't scroll sideways
+ *      gridbox:layout_boundary         boolean; see setLayoutBoundary()
+ *      gridbox:auto_placement          next or dense; see setAutoPlacement()
+ *      gridbox:auto_columns            width of the grid for dense placement
+ *      gridbox:strict                  boolean; log overlapping children
+ *      gridbox:column_sizes            declared column widths, see below
+ *      gridbox:row_sizes               declared row heights
+ *      gridbox:measure_once            boolean; see setMeasureOnce()
+ *      gridbox:grid_line_color         lines between cells; see setGridLines()
+ *      gridbox:grid_line_width         width of the lines
+ *      gridbox:alternate_row_color     fill for rows 1, 3, ...
+ *      gridbox:alternate_column_color  fill for columns 1, 3, ...
  *
  *		Note: the force_uniform_* attributes work by assigning
  *		excess space to columns/rows in order to achieve a
@@ -86,11 +122,15 @@ import android.view.ViewGroup;
  *
  * Child grid positions do not need to be specified in any particular order;
  * it's perfectly acceptable to lay out by rows, by columns, or in any
- * other order you choose.  Placing two child widgets in the same cell is
- * undefined behavior.
+ * other order you choose.  Placing two child widgets in the same cell
+ * draws one over the other; with gridbox:strict set, each such child is
+ * logged, and getOverlapCount() counts them.
  *
  * If not specified, the X and Y position of a cell in the grid default
- * to one cell to the right of the previous cell.
+ * to one cell to the right of the previous cell.  With
+ * gridbox:auto_placement="dense", such cells instead fill the first free
+ * space big enough for them, reading across rows gridbox:auto_columns
+ * wide.
  * Column and row spans default to 1.
  *
  * The widget sizes should never be specified as fill_parent -- use
@@ -108,6 +148,54 @@ import android.view.ViewGroup;
  * Note:  Each column or row is assigned the maximum weightx/weighty value
  * of all of its cells.  This means that you can often assign a weight to
  * just one item to get the desired effect.
+ *
+ * Declared track sizes:
+ *
+ * Instead of being as wide as their widest child, columns may be given
+ * a size with gridbox:column_sizes, a list of sizes for columns 0, 1,
+ * ... in turn; columns past the end of the list take the last one.
+ * Each size is "auto" (sized from the children, as above), a dimension
+ * such as "96dp" or "40px", or a fraction of the space left over such
+ * as "1fr" or "2.5fr".  So "96dp 1fr" makes column 0 96dp wide, and the
+ * rest share whatever remains equally.  Weights only apply to auto
+ * columns, and only if there are no fractional ones.  gridbox:row_sizes
+ * does the same for rows.  A child whose columns are all fixed is
+ * measured to fit them, and one whose columns and rows are all declared
+ * is only measured once, after the grid has been sized.
+ *
+ * Drawn cells:
+ *
+ * Read-only cells of text and icons needn't be views at all.  Add them
+ * to getDrawnCells() and Gridbox measures and draws them itself, with
+ * its CellRenderer.  They're sized and placed just like children, and
+ * children may fill the rest of the grid.
+ *
+ * Templates:
+ *
+ * Many Gridboxes with the same layout can share a GridTemplate (see
+ * setTemplate()), which holds the cells' positions, spans, weights,
+ * gravities and margins, already placed, and the track sizes.
+ *
+ * Track groups:
+ *
+ * Gridboxes in the same GridColumnGroup (see setColumnGroup()) have
+ * their columns made the same widths, e.g. to line up the rows of a
+ * ListView; GridRowGroup does the same for rows.
+ *
+ * Virtualized mode:
+ *
+ * For very large grids, call setAdapter() instead of adding children.
+ * The GridboxAdapter describes every cell, including the size of its
+ * view, and Gridbox sizes the rows and columns from that exactly as
+ * above.  Views are only created and bound for the cells which can
+ * currently be seen, and are recycled as they scroll out of sight.
+ *
+ * Scrolling:
+ *
+ * With gridbox:scrollable set, Gridbox scrolls its content horizontally
+ * and vertically by itself, with flinging, instead of growing to fit
+ * it.  Children are only laid out and drawn once their cells scroll
+ * into view.
  */
 public class Gridbox extends ViewGroup {
   /*
@@ -136,39 +224,137 @@ public class Gridbox extends ViewGroup {
    * weights of those rows & columns.
    *
    *
-   * Internal methods related to geometry management:
-   *
-   * GridboxResize()      given Gridbox size, lay out the child widgets.
-   * layout()             given size, assign sizes of rows & columns
-   * layoutChild()        assign size of one child widget
-   * changeGeometry()     attempt to change size, negotiate with parent
+   * The arithmetic all lives in org.efalk.gridbox.core.GridSolver, which
+   * has no Android dependencies.  Gridbox itself is an adapter:  it
+   * describes its children to the solver as cells (cell i is child i),
+   * measures them, and applies the frames the solver computes.
    *
    */
 
-  private static final String TAG = "Gridbox";
+  /** Track sizes; see setColumnSizes() */
+  public static final int TRACK_AUTO = GridSolver.TRACK_AUTO;
+  public static final int TRACK_FIXED = GridSolver.TRACK_FIXED;
+  public static final int TRACK_FRACTION = GridSolver.TRACK_FRACTION;
+
+  /** Children without a position go just right of the previous one. */
+  public static final int PLACE_NEXT = GridSolver.PLACE_NEXT;
+  /** Children without a position go in the first free space. */
+  public static final int PLACE_DENSE = GridSolver.PLACE_DENSE;
 
   private int gravity = Gravity.CENTER;
   private int innerMargin;              // Default distance between children
-  private boolean force_uniform_width;
-  private boolean force_uniform_height;
-
-  private int ncol = 0, nrow = 0;       // Size of grid
-  private int[] max_wids = null;        // Maximum widths requested
-  private int[] max_hgts = null;        // Maximum heights requested
-  private int[] wids = null;            // Assigned widths
-  private int[] hgts = null;            // Assigned heights
-  private float[] weightx = null;	// Column weights
-  private float[] weighty = null;	// Row weights
-  private int max_col_span, max_row_span;
-  private int total_wid = 0, total_hgt = 0;
-  private float total_weightx = 0, total_weighty = 0;
+
+  private final GridSolver solver = new GridSolver();
   private boolean need_count = true;
-  // needs_layout = true;
+  private GridTemplate template = null;  // see setTemplate()
+
+  // Virtualized mode
+  private GridboxAdapter adapter = null;
+  private final GridboxAdapter.CellSpec spec = new GridboxAdapter.CellSpec();
+  private final SparseArray<View> active = new SparseArray<View>();
+  private final ArrayList<ArrayList<View>> scrap =
+    new ArrayList<ArrayList<View>>();
+  private final Rect viewport = new Rect();
+  private final Rect visible_cells = new Rect();  // columns, rows; inclusive
+  private final Rect bound_cells = new Rect(-1, -1, -1, -1);
+  private boolean need_bind = false;
+
+  // Scrolling
+  private boolean scrollable = false;
+  private OverScroller scroller;
+  private VelocityTracker velocityTracker = null;
+  private int touchSlop, minFling, maxFling;
+  private boolean dragging = false;
+  private int lastX, lastY;
+  private int frozen_rows = 0, frozen_cols = 0;  // see setFrozenRows()
+  private int layout_gen = 0;           // Counts onLayout() calls
+  private int cache_hits = 0, cache_misses = 0;   // see measureCached()
+
+  // Touch dispatch
+  private boolean by_grid = false;      // We route this gesture, not ViewGroup
+  private View touch_target = null;
+  private boolean intercept_all = false;        // Gesture goes to onTouchEvent()
+  private boolean disallow_intercept = false;
+  private final Matrix inverse = new Matrix();
+  private MotionEvent.PointerProperties[] props = null;  // see handOff()
+  private MotionEvent.PointerCoords[] coords = null;
+
+  // Batched updates; see beginUpdate()
+  private int update_depth = 0;
+  private boolean pending_layout = false;
+  private boolean pending_invalidate = false;
+
+  private boolean measure_once = false;  // see setMeasureOnce()
+
+  // Grid lines and fills; see setGridLines()
+  private Paint line_paint = null;
+  private Paint row_paint = null, col_paint = null;
+  private float[] line_pts = new float[64];
+  private int nline_pts;
+  private final Rect clip = new Rect();
+  private final Rect clip_tracks = new Rect();  // columns, rows; inclusive
+
+  // Children ViewGroup may still be drawing after they've gone; see
+  // cullable()
+  private final ArrayList<View> leaving = new ArrayList<View>();
+  private int transitions = 0;
+
+  // Cells without views; see getDrawnCells().  They follow the
+  // children in the solver.
+  private DrawnCells drawn = null;
+  private CellRenderer renderer = null;
+  private final int[] drawn_size = new int[2];
+
+  // Track groups; see setColumnGroup().  The gens are the groups'
+  // last seen.
+  private GridColumnGroup col_group = null;
+  private GridRowGroup row_group = null;
+  private int col_group_gen = -1, row_group_gen = -1;
+  private boolean group_pending = false;        // see groupChanged()
+  private final Runnable groupLayout = new Runnable() {
+    @Override
+    public void run() {
+      group_pending = false;
+      requestLayout();
+    }
+  };
+
+  // Layout boundary; see setLayoutBoundary()
+  private boolean layout_boundary = false;
+  private boolean measured = false;
+  private int last_wspec, last_hspec;
+  private int want_w, want_h;           // What onMeasure() asked for
+  // Our own layout as of the last measure, to tell our requests from
+  // the children's
+  private ViewGroup.LayoutParams last_lp;
+  private int last_lp_w, last_lp_h, last_min_w, last_min_h;
+  private boolean local_pending = false;
+  private final Runnable localLayout = new Runnable() {
+    @Override
+    public void run() {
+      layoutLocally();
+    }
+  };
 
-/*
-private int[] old_wids = null;
-private int[] new_wids = null;
-*/
+  private final DataSetObserver observer = new DataSetObserver() {
+    @Override
+    public void onChanged() {
+      need_count = true;
+      need_bind = true;
+      requestLayout();
+    }
+  };
+
+  private final ViewTreeObserver.OnScrollChangedListener scrollListener =
+    new ViewTreeObserver.OnScrollChangedListener() {
+      @Override
+      public void onScrollChanged() {
+        // Some ancestor scrolled; different cells may be visible now.
+        if( adapter != null && !isLayoutRequested() &&
+            updateVirtualChildren(false) )
+          invalidate();
+      }
+    };
 
   // private boolean mBaselineAligned = true;
 
@@ -193,12 +379,36 @@ private int[] new_wids = null;
     innerMargin =
       a.getDimensionPixelSize(R.styleable.Gridbox_inner_margin, innerMargin);
     gravity = a.getInt(R.styleable.Gridbox_gravity, gravity);
-    force_uniform_width =
-      a.getBoolean(R.styleable.Gridbox_force_uniform_width, false);
-    force_uniform_height =
-      a.getBoolean(R.styleable.Gridbox_force_uniform_height, false);
+    solver.setForceUniformWidth(
+      a.getBoolean(R.styleable.Gridbox_force_uniform_width, false));
+    solver.setForceUniformHeight(
+      a.getBoolean(R.styleable.Gridbox_force_uniform_height, false));
+    scrollable = a.getBoolean(R.styleable.Gridbox_scrollable, false);
+    frozen_rows = a.getInt(R.styleable.Gridbox_frozen_rows, 0);
+    frozen_cols = a.getInt(R.styleable.Gridbox_frozen_columns, 0);
+    layout_boundary =
+      a.getBoolean(R.styleable.Gridbox_layout_boundary, false);
+    solver.setAutoPlacement(
+      a.getInt(R.styleable.Gridbox_auto_placement, PLACE_NEXT),
+      a.getInt(R.styleable.Gridbox_auto_columns, 0));
+    solver.setStrict(a.getBoolean(R.styleable.Gridbox_strict, false));
+    setTrackSizes(a.getString(R.styleable.Gridbox_column_sizes), true);
+    measure_once = a.getBoolean(R.styleable.Gridbox_measure_once, false);
+    setTrackSizes(a.getString(R.styleable.Gridbox_row_sizes), false);
+    setGridLines(a.getColor(R.styleable.Gridbox_grid_line_color, 0),
+      a.getDimensionPixelSize(R.styleable.Gridbox_grid_line_width, 1));
+    setAlternateRowColor(
+      a.getColor(R.styleable.Gridbox_alternate_row_color, 0));
+    setAlternateColumnColor(
+      a.getColor(R.styleable.Gridbox_alternate_column_color, 0));
     a.recycle();
 
+    scroller = new OverScroller(ctx);
+    final ViewConfiguration vc = ViewConfiguration.get(ctx);
+    touchSlop = vc.getScaledTouchSlop();
+    minFling = vc.getScaledMinimumFlingVelocity();
+    maxFling = vc.getScaledMaximumFlingVelocity();
+
     // TODO: resize now, or wait until later?
   }
 
@@ -211,7 +421,6 @@ private int[] new_wids = null;
   @Override
   public void addView(View child, int col, int row) {
     super.addView(child);
-    need_count = true;
   }
 
   /**
@@ -219,7 +428,131 @@ private int[] new_wids = null;
    */
   public void addView(View child, int width, int height, int col, int row) {
     super.addView(child, width, height);
-    need_count = true;
+  }
+
+  /**
+   * The child's cell goes into the grid straight away, without
+   * counting all the cells again.  That takes constant time for a
+   * child added at the end.  One added anywhere else renumbers the
+   * cells after it, in time proportional to the number of children
+   * and the grid's area, much as ViewGroup shifts its child array.
+   */
+  @Override
+  public void onViewAdded(View child) {
+    super.onViewAdded(child);
+    // The child may be carrying LayoutParams from a previous parent.
+    final ViewGroup.LayoutParams p = child.getLayoutParams();
+    if( p instanceof LayoutParams ) ((LayoutParams) p).measureValid = false;
+    if( update_depth > 0 ) need_count = true;   // Count once at the end
+    if( adapter != null || need_count ) return;
+
+    // It's already in the child array; the solver is one cell short.
+    final int i = findChild(child);
+    if( i < 0 ||
+	solver.getCellCount() != getChildCount() - 1 + drawnCount() ) {
+      need_count = true;
+      return;
+    }
+    solver.insertCell(i);
+    pushCell(i, child, (LayoutParams) p);
+  }
+
+  /**
+   * Likewise, the child's cell is taken out of the grid directly:
+   * quickly for the last child, in linear time for any other.
+   */
+  @Override
+  public void onViewRemoved(View child) {
+    super.onViewRemoved(child);
+    if( update_depth > 0 ) need_count = true;
+    if( adapter == null && !need_count ) {
+      // The child is still in the child array.  removeViews() takes
+      // out several before the array catches up, so allow for the
+      // cells already gone.  removeAllViews() empties the array first;
+      // just count again afterwards.
+      final int i = findChild(child);
+      final int gone =
+	getChildCount() + drawnCount() - solver.getCellCount();
+      if( i < 0 || gone < 0 || i - gone < 0 ) need_count = true;
+      else solver.removeCell(i - gone);
+    }
+    // ViewGroup keeps drawing it until its animation is over
+    if( child.getAnimation() != null ) leaving.add(child);
+    if( child == touch_target ) {
+      // Same as ViewGroup:  the child gets a cancel, and the rest of
+      // the gesture comes to us.
+      final long now = SystemClock.uptimeMillis();
+      final MotionEvent ev =
+	MotionEvent.obtain(now, now, MotionEvent.ACTION_CANCEL, 0, 0, 0);
+      child.dispatchTouchEvent(ev);
+      ev.recycle();
+      touch_target = null;
+      intercept_all = true;
+    }
+  }
+
+  @Override
+  public void requestLayout() {
+    if( update_depth > 0 ) {
+      pending_layout = true;
+      return;
+    }
+    if( layout_boundary && measured && isAttachedToWindow() &&
+	!isLayoutRequested() && !isInLayout() && fromChild() )
+    {
+      // Try to deal with it ourselves before the next frame.
+      if( !local_pending ) {
+	local_pending = true;
+	postOnAnimation(localLayout);
+      }
+      return;
+    }
+    super.requestLayout();
+  }
+
+  @Override
+  public void invalidate() {
+    if( update_depth > 0 ) {
+      pending_invalidate = true;
+      return;
+    }
+    super.invalidate();
+  }
+
+  /**
+   * Changing a child's LayoutParams this way moves its cell at once.
+   * Changes made any other way are picked up at the next measure.
+   */
+  @Override
+  public void updateViewLayout(View view, ViewGroup.LayoutParams params) {
+    super.updateViewLayout(view, params);
+    if( adapter != null || need_count ) return;
+    final int i = findChild(view);
+    if( i >= 0 && solver.getCellCount() == getChildCount() + drawnCount() )
+      pushCell(i, view, (LayoutParams) view.getLayoutParams());
+  }
+
+  @Override
+  protected void onAttachedToWindow() {
+    super.onAttachedToWindow();
+    getViewTreeObserver().addOnScrollChangedListener(scrollListener);
+    if( col_group != null ) col_group.join(this);
+    if( row_group != null ) row_group.join(this);
+  }
+
+  @Override
+  protected void onDetachedFromWindow() {
+    getViewTreeObserver().removeOnScrollChangedListener(scrollListener);
+    // Off screen, we shouldn't hold the others' tracks open.
+    if( col_group != null ) col_group.leave(this);
+    if( row_group != null ) row_group.leave(this);
+    col_group_gen = row_group_gen = -1;
+    if( group_pending ) {
+      removeCallbacks(groupLayout);
+      group_pending = false;
+    }
+    leaving.clear();
+    super.onDetachedFromWindow();
   }
 
   @Override
@@ -227,9 +560,24 @@ private int[] new_wids = null;
     int wid = MeasureSpec.getSize(widthMeasureSpec);
     int hgt = MeasureSpec.getSize(heightMeasureSpec);
     final int num_children = getChildCount();
+    final int ndrawn = drawnCount();
     final int hpad = getPaddingLeft() + getPaddingRight();
     final int vpad = getPaddingTop() + getPaddingBottom();
-//Log.d(TAG, "onMeasure");
+    measured = true;
+    last_wspec = widthMeasureSpec;
+    last_hspec = heightMeasureSpec;
+    last_lp = getLayoutParams();
+    if( last_lp != null ) {
+      last_lp_w = last_lp.width;
+      last_lp_h = last_lp.height;
+    }
+    last_min_w = getMinimumWidth();
+    last_min_h = getMinimumHeight();
+
+    if( adapter != null ) {
+      measureVirtual(widthMeasureSpec, heightMeasureSpec, hpad, vpad);
+      return;
+    }
 
     // Overview:  Query all children, find out how much space they
     // need.  Each child has margins; add them in.  Once all the
@@ -248,54 +596,33 @@ private int[] new_wids = null;
     //
     // This will almost certainly turn into a two-pass layout process.
 
-    if( num_children <= 0 ) {
+    if( num_children + ndrawn <= 0 ) {
       // Degenerate case, just ask for our padding.
-      wid = getSize(hpad, 0, widthMeasureSpec);
-      hgt = getSize(vpad, 0, heightMeasureSpec);
+      want(hpad, vpad);
+      wid = getSize(hpad, 0, false, widthMeasureSpec);
+      hgt = getSize(vpad, 0, false, heightMeasureSpec);
       setMeasuredDimension(wid, hgt);
       return;
     }
 
+    if( solver.getCellCount() != num_children + ndrawn ) need_count = true;
     countCells();	// Find out the grid dimensions
 
-    // TODO: when should we free these up?
-    if( max_wids == null || max_wids.length < ncol ) max_wids = new int[ncol];
-    if( max_hgts == null || max_hgts.length < nrow ) max_hgts = new int[nrow];
-    if( wids == null || wids.length < ncol ) wids = new int[ncol];
-    if( hgts == null || hgts.length < nrow ) hgts = new int[nrow];
-    if( weightx == null || weightx.length < ncol ) weightx = new float[ncol];
-    if( weighty == null || weighty.length < ncol ) weighty = new float[nrow];
-
-
-    // Examine children for the size they need,
-    // compute row & column sizes accordingly.
-    //
-    // There might be a more optimal way to do this to take advantage
-    // of previous layout passes.  This is worth rethinking
-    // if the Gridbox widget is to be used with large grids.
-    //
-    // This may also generate a non-optimum answer if large cells
-    // partially overlap.
-
-    Arrays.fill(max_wids, 0);
-    Arrays.fill(max_hgts, 0);
-    Arrays.fill(weightx, 0);
-    Arrays.fill(weighty, 0);
-
-//if (old_wids == null || old_wids.length != num_children) {
-//  Log.d(TAG, "-- Number of children has changed");
-//  old_wids = null;
-//}
-
-//new_wids = new int[num_children];
-
-    // Find out how large children would like to be
-    // TODO: we can skip this step if there haven't been any changes in
-    // the children, their layout parameters, or their sizes.  But how to
-    // determine that?
-    total_wid = 0;
-    total_hgt = 0;
-    int i,j;
+    // If we scroll, children may be as large as they like.
+    final int cwspec = scrollable ?
+	MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED) :
+	widthMeasureSpec;
+    final int chspec = scrollable ?
+	MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED) :
+	heightMeasureSpec;
+
+    // Find out how large children would like to be.
+    // A child only needs to be asked again if it has requested a layout
+    // since we last asked (which is also what setLayoutParams() does),
+    // or if the specs we'd pass down have changed.  Everybody else
+    // keeps the answer cached in their LayoutParams.
+    int i;
+    int ndeclared = 0, nlater = 0;
     for( i = 0; i < num_children; ++i )
     {
       final View child = getChildAt(i);
@@ -304,77 +631,73 @@ private int[] new_wids = null;
 	final LayoutParams lp = (LayoutParams) child.getLayoutParams();
 	if( lp.gravity == Gravity.NO_GRAVITY ) lp.gravity = gravity;
 
+	// Tell the solver where it is first; its tracks decide how it's
+	// asked.  Unchanged values cost nothing; changed ones only update
+	// this cell's rows and columns.
+	pushCell(i, child, lp);
+
+	// A child in declared tracks only can't affect their sizes.  It
+	// waits until its cell's size is known, below.
+	if( solver.isDeclared(i) ) {
+	  ++ndeclared;
+	  continue;
+	}
+	// Likewise its columns, in measure_once mode; see below.
+	if( measure_once && solver.hasDeclaredWidth(i) ) {
+	  ++nlater;
+	  continue;
+	}
+
 	// Ask child how much space it wants.  We'll be correcting later.
-	measureChild(child, widthMeasureSpec, heightMeasureSpec);
+	// Along an axis where its tracks are all fixed it's asked to fit
+	// them, which is the size it will get.
+	measureCached(child, lp,
+	    widthSpec(lp, solver.getFixedWidth(i), cwspec, hpad),
+	    heightSpec(lp, solver.getFixedHeight(i), chspec, vpad));
+	solver.setPreferredSize(i, lp.lastWidth, lp.lastHeight);
       }
+      else
+	solver.setVisible(i, false);
     }
-
-/*
-for( i = 0; i < num_children; ++i ) {
-  final View child = getChildAt(i);
-  new_wids[i] = child.getMeasuredWidth();
-  if( old_wids != null && old_wids[i] != new_wids[i] ) {
-    final LayoutParams lp = (LayoutParams) child.getLayoutParams();
-    Log.d(TAG,
-      String.format("-- Child %d (%s: %d,%d) has changed requested width: %d => %d",
-      	i, child.getClass().getName(), lp.gridx, lp.gridy,
-	old_wids[i], new_wids[i]));
-  }
-}
-*/
-
-    // Find maximum column and row sizes.
-    final int npass = Math.max(max_col_span, max_row_span);
-    for( j = 1; j <= npass; ++j )
-    {
-      for( i = 0; i < num_children; ++i )
-      {
+    if( ndrawn > 0 ) measureDrawn(num_children, ndrawn);
+
+    // In measure_once mode, settle the columns first.  Children whose
+    // columns are all declared can't change them, so they're asked
+    // once, now, with the widths they'll get; that's the width their
+    // heights depend on.  Filled children then don't need measuring
+    // again below.
+    if( nlater > 0 ) {
+      solver.computeTrackSizes();
+      solver.distributeWidth(getSize(solver.getPreferredWidth() + hpad,
+		  solver.getTotalWeightx(), solver.hasFractionalColumns(),
+		  widthMeasureSpec) - hpad);
+      for( i = 0; i < num_children && nlater > 0; ++i ) {
 	final View child = getChildAt(i);
-	if( child != null && child.getVisibility() != View.GONE )
+	if( child != null && child.getVisibility() != View.GONE &&
+	    !solver.isDeclared(i) && solver.hasDeclaredWidth(i) )
 	{
 	  final LayoutParams lp = (LayoutParams) child.getLayoutParams();
-	  final int col = lp.gridx;
-	  final int row = lp.gridy;
-	  if( lp.colSpan == j ) {
-	    final int w = child.getMeasuredWidth() +
-			    lp.leftMargin + lp.rightMargin;
-	    computeWidHgtUtil(col, j, w, lp.weightx, max_wids, weightx);
-	  }
-	  if( lp.rowSpan == j ) {
-	    final int h = child.getMeasuredHeight() +
-			    lp.topMargin + lp.bottomMargin;
-	    computeWidHgtUtil(row, j, h, lp.weighty, max_hgts, weighty);
-	  }
+	  measureCached(child, lp,
+	      widthSpec(lp, solver.getCellWidth(i), cwspec, hpad),
+	      heightSpec(lp, solver.getFixedHeight(i), chspec, vpad));
+	  solver.setPreferredSize(i, lp.lastWidth, lp.lastHeight);
+	  --nlater;
 	}
       }
     }
 
-    /*
-    if( force_uniform_width )
-      force_uniform(max_wids);
-
-    if( force_uniform_height )
-      force_uniform(max_hgts);
-    */
-
-    // Step 4: compute sums
-
-    total_wid = 0;
-    total_weightx = 0;
-    for(i=0; i < ncol; ++i) {
-      total_wid += max_wids[i];
-      total_weightx += weightx[i];
-    }
-
-    total_hgt = 0;
-    total_weighty = 0;
-    for(i=0; i < nrow; ++i) {
-      total_hgt += max_hgts[i];
-      total_weighty += weighty[i];
-    }
-
-    wid = getSize(total_wid + hpad, total_weightx, widthMeasureSpec);
-    hgt = getSize(total_hgt + vpad, total_weighty, heightMeasureSpec);
+    // Compute row & column sizes from the children's sizes, and from
+    // that, our own size.
+    solver.computeTrackSizes();
+    applyGroups();
+
+    want(solver.getPreferredWidth() + hpad, solver.getPreferredHeight() + vpad);
+    wid = getSize(solver.getPreferredWidth() + hpad,
+		  solver.getTotalWeightx(), solver.hasFractionalColumns(),
+		  widthMeasureSpec);
+    hgt = getSize(solver.getPreferredHeight() + vpad,
+		  solver.getTotalWeighty(), solver.hasFractionalRows(),
+		  heightMeasureSpec);
     setMeasuredDimension(wid, hgt);
 
 
@@ -382,14 +705,23 @@ for( i = 0; i < num_children; ++i ) {
     // the children of the sizes they got.
 
     // Step 5: Compute the sizes
-    System.arraycopy(max_wids, 0, wids, 0, wids.length);
-    distributeExcess(ncol, wid - hpad, wids, total_wid,
-			weightx, total_weightx, force_uniform_width);
+    solver.distribute(wid - hpad, hgt - vpad);
 
-    // Same again, for heights
-    System.arraycopy(max_hgts, 0, hgts, 0, hgts.length);
-    distributeExcess(nrow, hgt - vpad, hgts, total_hgt,
-			weighty, total_weighty, force_uniform_height);
+    // Children in declared tracks only are measured now, once, for
+    // the cells they got.  Their sizes only place them in the cells.
+    for( i = 0; i < num_children && ndeclared > 0; ++i ) {
+      final View child = getChildAt(i);
+      if( child != null && child.getVisibility() != View.GONE &&
+	  solver.isDeclared(i) )
+      {
+	final LayoutParams lp = (LayoutParams) child.getLayoutParams();
+	measureCached(child, lp,
+	    widthSpec(lp, solver.getCellWidth(i), cwspec, hpad),
+	    heightSpec(lp, solver.getCellHeight(i), chspec, vpad));
+	solver.setPreferredSize(i, lp.lastWidth, lp.lastHeight);
+	--ndeclared;
+      }
+    }
 
 
     // Step 6: Make a second pass, tell children the actual size they got
@@ -397,7 +729,8 @@ for( i = 0; i < num_children; ++i ) {
     // margins, which we need to remove before informing the children.
     for( i = 0; i < num_children; ++i ) {
       final View child = getChildAt(i);
-      if( child != null && child.getVisibility() != View.GONE )
+      if( child != null && child.getVisibility() != View.GONE &&
+	  !solver.isDeclared(i) )
       {
 	final LayoutParams lp = (LayoutParams) child.getLayoutParams();
 	// Only needs to be done if gravity is fill
@@ -407,41 +740,72 @@ for( i = 0; i < num_children; ++i ) {
 	    (vgravity == Gravity.FILL_VERTICAL) )
 	{
 	  int width = hgravity == Gravity.FILL_HORIZONTAL ?
-	      computeCellWid(lp) - lp.leftMargin - lp.rightMargin :
-	      child.getMeasuredWidth();
+	      solver.getCellWidth(i) - lp.leftMargin - lp.rightMargin :
+	      lp.lastWidth;
 	  int height = vgravity == Gravity.FILL_VERTICAL ?
-	      computeCellHgt(lp) - lp.topMargin - lp.bottomMargin :
-	      child.getMeasuredHeight();
-/*
-if( width != new_wids[i] )
-  Log.d(TAG,
-    String.format("-- Child %d (%d,%d) assigned a new width: %d => %d",
-      i, lp.gridx, lp.gridy, new_wids[i], width));
-*/
-	  child.measure(
-	    MeasureSpec.makeMeasureSpec(width, MeasureSpec.EXACTLY),
-	    MeasureSpec.makeMeasureSpec(height, MeasureSpec.EXACTLY));
+	      solver.getCellHeight(i) - lp.topMargin - lp.bottomMargin :
+	      lp.lastHeight;
+	  // Nothing to do if it's that size already, e.g. because it was
+	  // asked to fit fixed or settled tracks.
+	  if( child.getMeasuredWidth() != width ||
+	      child.getMeasuredHeight() != height )
+	    child.measure(
+	      MeasureSpec.makeMeasureSpec(width, MeasureSpec.EXACTLY),
+	      MeasureSpec.makeMeasureSpec(height, MeasureSpec.EXACTLY));
 	}
+	// Anybody else is brought up to date in onLayout(); see
+	// settleChild().
+      }
+    }
+  }
+
+  /*
+   * A track group we're in has changed some of our tracks.  That's
+   * found out while another member is being measured, so the layout
+   * is asked for afterwards, not from inside its onMeasure().
+   */
+  void groupChanged() {
+    if( group_pending ) return;
+    group_pending = true;
+    post(groupLayout);
+  }
+
+  /*
+   * Tell our groups what size we'd like our tracks, and make ours at
+   * least as large as theirs.
+   */
+  private void applyGroups() {
+    if( col_group != null ) {
+      col_group.update(this, solver);
+      if( col_group.gen != col_group_gen ) {
+	col_group_gen = col_group.gen;
+	solver.setMinColumnWidths(col_group.shared, col_group.ntracks);
+      }
+    }
+    if( row_group != null ) {
+      row_group.update(this, solver);
+      if( row_group.gen != row_group_gen ) {
+	row_group_gen = row_group.gen;
+	solver.setMinRowHeights(row_group.shared, row_group.ntracks);
       }
     }
-    //old_wids = new_wids;
-    //new_wids = null;
   }
 
   /*
    * Given the minimum required size for this gridlayout in 'size',
-   * the total weight, and the measurespec passed down from the parent,
-   * return the size we should set ourselves to.
+   * the total weight, whether there are fractional tracks to fill
+   * any space offered, and the measurespec passed down from the
+   * parent, return the size we should set ourselves to.
    */
   static private final int
-  getSize(int size, float weight, int spec) {
+  getSize(int size, float weight, boolean fill, int spec) {
     int mode = MeasureSpec.getMode(spec);
     int wid = MeasureSpec.getSize(spec);
     switch( mode ) {
       default:
       case MeasureSpec.EXACTLY: return wid;
       case MeasureSpec.UNSPECIFIED: return size;
-      case MeasureSpec.AT_MOST: return wid > size ? size : wid;
+      case MeasureSpec.AT_MOST: return wid > size && !fill ? size : wid;
 /*
 	if( weight > 0 || size > wid) return wid;
 	return size;
@@ -449,340 +813,1892 @@ if( width != new_wids[i] )
     }
   }
 
+  /*
+   * Measure a child with the given specs, unless it already has been
+   * and nothing has changed since.  Leaves the result in lp.
+   *
+   * Each child keeps its answers to the last few pairs of specs it was
+   * asked with (see LayoutParams), since parents such as a weighted
+   * LinearLayout measure us more than once a frame, with different
+   * specs, and nested Gridboxes multiply that.  The answers are thrown
+   * away while the child has a layout request pending, which lasts
+   * until it's laid out, so a child which changes is measured afresh
+   * on every pass until then, as View.measure() itself would.
+   */
+  private void
+  measureCached(View child, LayoutParams lp, int wspec, int hspec) {
+    if( !lp.measureValid || child.isLayoutRequested() ) {
+      lp.cacheCount = 0;
+      lp.measureValid = true;
+    }
+    final int[] c = lp.cache;
+    for( int k = 0; k < lp.cacheCount * 4; k += 4 ) {
+      if( c[k] == wspec && c[k+1] == hspec ) {
+	lp.lastWidthSpec = wspec;
+	lp.lastHeightSpec = hspec;
+	lp.lastWidth = c[k+2];
+	lp.lastHeight = c[k+3];
+	++cache_hits;
+	return;
+      }
+    }
+    child.measure(wspec, hspec);
+    lp.lastWidthSpec = wspec;
+    lp.lastHeightSpec = hspec;
+    lp.lastWidth = child.getMeasuredWidth();
+    lp.lastHeight = child.getMeasuredHeight();
+    ++cache_misses;
+
+    // Replace the oldest entry
+    final int k = lp.cacheNext * 4;
+    c[k] = wspec;
+    c[k+1] = hspec;
+    c[k+2] = lp.lastWidth;
+    c[k+3] = lp.lastHeight;
+    lp.cacheNext = (lp.cacheNext + 1) % LayoutParams.CACHE_SIZE;
+    if( lp.cacheCount < LayoutParams.CACHE_SIZE ) ++lp.cacheCount;
+  }
+
+  /*
+   * A child answered from the measure cache was last measured by some
+   * earlier pass, possibly with other specs.  Before laying it out,
+   * make sure it has the size it answered with in the last one.  The
+   * same goes for a child which was filled on an earlier pass but
+   * isn't any more (its gravity changed).  Children which fill their
+   * cells have already been measured to them, in onMeasure().
+   */
+  private void settleChild(int i, View child) {
+    final LayoutParams lp = (LayoutParams) child.getLayoutParams();
+    if( !lp.measureValid || (!solver.isDeclared(i) &&
+	(fills(lp, Gravity.HORIZONTAL_GRAVITY_MASK) ||
+	 fills(lp, Gravity.VERTICAL_GRAVITY_MASK))) )
+      return;
+    if( child.getMeasuredWidth() != lp.lastWidth ||
+	child.getMeasuredHeight() != lp.lastHeight )
+      child.measure(lp.lastWidthSpec, lp.lastHeightSpec);
+  }
+
+  /*
+   * The measurespecs for a child.  'size' is the size of its cell
+   * including margins, if known, else -1 and the child is asked with
+   * the spec we were given, as measureChild() would.
+   */
+  private static int
+  widthSpec(LayoutParams lp, int size, int spec, int pad) {
+    return size >= 0 ?
+      cellSpec(size, lp.leftMargin + lp.rightMargin,
+	  fills(lp, Gravity.HORIZONTAL_GRAVITY_MASK), lp.width) :
+      getChildMeasureSpec(spec, pad, lp.width);
+  }
+
+  private static int
+  heightSpec(LayoutParams lp, int size, int spec, int pad) {
+    return size >= 0 ?
+      cellSpec(size, lp.topMargin + lp.bottomMargin,
+	  fills(lp, Gravity.VERTICAL_GRAVITY_MASK), lp.height) :
+      getChildMeasureSpec(spec, pad, lp.height);
+  }
+
+  // Does the child fill its cell along the axis given by mask?
+  private static boolean fills(LayoutParams lp, int mask) {
+    return (lp.gravity & mask) == (Gravity.FILL & mask);
+  }
+
+  /*
+   * The measurespec for a child along one axis, when its cell is known
+   * to be 'size' (including 'margins'):  exactly that if it fills the
+   * cell, else as much of it as its own layout size asks for.
+   */
+  private static int cellSpec(int size, int margins, boolean fill, int lpsize) {
+    final int avail =
+      MeasureSpec.makeMeasureSpec(Math.max(size - margins, 0), MeasureSpec.EXACTLY);
+    return fill ? avail : getChildMeasureSpec(avail, 0, lpsize);
+  }
+
   @Override
   protected void onLayout(boolean changed, int l, int t, int r, int b)
   {
-      final int count = getChildCount();
+      final int count = Math.min(getChildCount(), solver.getCellCount());
       int i;
-      int x,y;
+
+      local_pending = false;
+      ++layout_gen;
 
       // TODO: should we do another measure pass just in case the
       // values are different from the onMeasure() pass?  Nobody else does.
 
-      if( count <= 0 || ncol <= 0 || nrow <= 0 )
+      if( adapter != null ) {
+        layoutVirtual();
         return;
-
-      // assign positions
-      int[] xs = new int[ncol];
-      for(x=getPaddingLeft(), i=0; i < ncol; ++i)
-      {
-        xs[i] = x;
-        x += wids[i];
       }
 
-      int[] ys = new int[nrow];
-      for(y=getPaddingTop(), i=0; i < nrow; ++i)
-      {
-        ys[i] = y;
-        y += hgts[i];
+      if( scrollable ) {
+	// Only lay out what can be seen; the rest waits until it's
+	// scrolled into view.
+	solver.setOrigin(getPaddingLeft(), getPaddingTop());
+	scrollTo(getScrollX(), getScrollY());	// clamp to the new size
+	placeVisibleChildren();
+	return;
       }
 
-      // Finally, loop through children, assign positions and sizes
-      // Each child is assigned a size which is a function of its position
-      // and size in cells.  The child's margin is subtracted from all sides.
+      if( solver.getCellCount() <= 0 ||
+	  solver.getColumnCount() <= 0 || solver.getRowCount() <= 0 )
+        return;
+
+      // Let the solver assign positions and sizes.  Each child is
+      // assigned a size which is a function of its position and size
+      // in cells.  The child's margin is subtracted from all sides.
+      solver.layout(getPaddingLeft(), getPaddingTop());
 
-      //ncol = nrow = 0;
-      //max_col_span = max_row_span = 0;
+      // Finally, loop through children and apply them.
       for( i = 0; i < count; ++i ) {
         final View child = getChildAt(i);
-        if( child != null && child.getVisibility() != View.GONE ) {
-          layoutChild(child, xs, ys);
+        if( child != null && child.getVisibility() != View.GONE &&
+	    solver.isVisible(i) )
+	{
+	  final int x = solver.getFrameX(i);
+	  final int y = solver.getFrameY(i);
+	  settleChild(i, child);
+	  child.layout(x, y,
+	      x + solver.getFrameWidth(i), y + solver.getFrameHeight(i));
 	}
       }
   }
 
 
+  /**
+   * Draw the alternate row and column fills, then the drawn cells and
+   * the children, then the grid lines over them.
+   */
   @Override
-  public LayoutParams generateLayoutParams(AttributeSet attrs)
+  protected void dispatchDraw(Canvas canvas)
   {
-    return new Gridbox.LayoutParams(getContext(), attrs);
+    final int ndrawn = drawnCount();
+    final boolean decorated = (line_paint != null || row_paint != null ||
+	col_paint != null || ndrawn > 0) && !isLayoutRequested() &&
+	clippedTracks(canvas);
+    final int save = canvas.save();
+    if( getClipToPadding() ) {
+      final int sx = getScrollX(), sy = getScrollY();
+      canvas.clipRect(sx + getPaddingLeft(), sy + getPaddingTop(),
+	  sx + getWidth() - getPaddingRight(),
+	  sy + getHeight() - getPaddingBottom());
+    }
+    if( !((frozenCols() > 0 || frozenRows() > 0) && !isLayoutRequested() &&
+	  cellsCurrent() && drawFrozen(canvas)) )
+    {
+      if( decorated ) drawFills(canvas);
+      if( decorated && ndrawn > 0 ) drawCells(canvas);
+      drawChildren(canvas);
+      if( decorated && line_paint != null ) drawGridLines(canvas);
+    }
+    canvas.restoreToCount(save);
   }
 
-  @Override
-  protected LayoutParams generateLayoutParams(ViewGroup.LayoutParams p)
-  {
-    return new Gridbox.LayoutParams(p);
+  /*
+   * With frozen rows or columns, the grid is drawn in four parts:  the
+   * body, scrolled as usual; the frozen rows, drawn down by the
+   * vertical scroll offset so that they stay at the top; the frozen
+   * columns, likewise kept at the left; and the corner where they meet,
+   * which doesn't move at all.  Nothing is laid out again to do this,
+   * it's only a matter of translating the canvas.  A cell belongs to
+   * the part its top-left corner is in.
+   *
+   * Only ViewGroup can draw the children while cullable() says no, or
+   * in Z order; then this returns false without drawing anything, and
+   * the frozen tracks scroll with the rest until it says yes again.
+   */
+  private boolean drawFrozen(Canvas canvas) {
+    final int fx = frozenCols(), fy = frozenRows();
+    final int sx = getScrollX(), sy = getScrollY();
+    final int x0 = sx + solver.getColumnX(0), x1 = sx + solver.getColumnX(fx);
+    final int y0 = sy + solver.getRowY(0), y1 = sy + solver.getRowY(fy);
+    final int right = sx + getWidth() - getPaddingRight();
+    final int bottom = sy + getHeight() - getPaddingBottom();
+    if( !cullable() ||
+	raised(findRegion(x1, y1, right, bottom, false, false)) ||
+	raised(findRegion(x1, y0, right, y1, false, true)) ||
+	raised(findRegion(x0, y1, x1, bottom, true, false)) ||
+	raised(findRegion(x0, y0, x1, y1, true, true)) )
+      return false;
+    drawRegion(canvas, x1, y1, right, bottom, false, false);
+    drawRegion(canvas, x1, y0, right, y1, false, true);
+    drawRegion(canvas, x0, y1, x1, bottom, true, false);
+    drawRegion(canvas, x0, y0, x1, y1, true, true);
+    return true;
   }
 
-  @Override
-  protected boolean checkLayoutParams(ViewGroup.LayoutParams p) {
-    return p instanceof Gridbox.LayoutParams;
+  /*
+   * Find the cells in one part of a grid with frozen tracks:  the
+   * given area of the view, which is pinned horizontally and/or
+   * vertically.  Leaves the tracks in clip_tracks and the cells in the
+   * solver's found list, and returns how many, or -1 if the area holds
+   * no tracks at all.
+   */
+  private int findRegion(int l, int t, int r, int b,
+    boolean pinx, boolean piny)
+  {
+    if( l >= r || t >= b ) return -1;
+    final int fx = frozenCols(), fy = frozenRows();
+    final int dx = pinx ? getScrollX() : 0;
+    final int dy = piny ? getScrollY() : 0;
+    final Rect v = clip_tracks;
+    v.left = Math.max(solver.findColumn(l - dx), pinx ? 0 : fx);
+    v.right = Math.min(solver.findColumn(r - 1 - dx),
+		       (pinx ? fx : solver.getColumnCount()) - 1);
+    v.top = Math.max(solver.findRow(t - dy), piny ? 0 : fy);
+    v.bottom = Math.min(solver.findRow(b - 1 - dy),
+			(piny ? fy : solver.getRowCount()) - 1);
+    if( v.left > v.right || v.top > v.bottom ) return -1;
+    return solver.findCells(v.left, v.top, v.right, v.bottom);
   }
 
-
-  // Other public methods
-
-  /**
-   * Set the default child gravity.  All child cells which do not specify a
-   * layout_gravity value will receive this value.
-   */
-  public Gridbox setGravity(int g) {
-    if( gravity != g ) {
-      gravity = g;
-      requestLayout();
+  // Do any of the first n found cells hold a child with a Z?
+  private boolean raised(int n) {
+    final int count = getChildCount();
+    for( int k = 0; k < n; ++k ) {
+      final int i = solver.getFoundCell(k);
+      if( i < count && getChildAt(i).getZ() != 0 ) return true;
     }
-    return this;
+    return false;
   }
 
-  /**
-   * Set inner margin.  This is the spacing that will be used between all
-   * child cells which do not specify a margin.
+  /*
+   * Draw one part of a grid with frozen tracks; see findRegion().
    */
-  public Gridbox setInnerMargin(int m) {
-    if( innerMargin != m ) {
-      innerMargin = m;
-      requestLayout();
+  private void drawRegion(Canvas canvas, int l, int t, int r, int b,
+    boolean pinx, boolean piny)
+  {
+    final int n = findRegion(l, t, r, b, pinx, piny);
+    if( n < 0 ) return;
+    final int fx = frozenCols(), fy = frozenRows();
+    final int save = canvas.save();
+    canvas.clipRect(l, t, r, b);
+    canvas.translate(pinx ? getScrollX() : 0, piny ? getScrollY() : 0);
+    if( row_paint != null || col_paint != null ) drawFills(canvas);
+    final long time = getDrawingTime();
+    final int count = getChildCount();
+    final CellRenderer cr = drawnCount() > 0 ? getCellRenderer() : null;
+    for( int k = 0; k < n; ++k ) {
+      final int i = solver.getFoundCell(k);
+      if( (solver.getGridx(i) < fx) != pinx ||
+	  (solver.getGridy(i) < fy) != piny )
+	continue;		// Drawn with some other part
+      if( i >= count ) {
+	solver.layoutCell(i);
+	final int x = solver.getFrameX(i);
+	final int y = solver.getFrameY(i);
+	cr.draw(canvas, drawn, i - count, x, y,
+	    x + solver.getFrameWidth(i), y + solver.getFrameHeight(i));
+	continue;
+      }
+      final View child = getChildAt(i);
+      if( child.getVisibility() == View.VISIBLE ||
+	  child.getAnimation() != null )
+	drawChild(canvas, child, time);
     }
-    return this;
+    if( line_paint != null ) drawGridLines(canvas);
+    canvas.restoreToCount(save);
   }
 
-
-  // Utilities
-
   /**
-   * Find out how many cells wide and high this grid will be.
-   * Assign grid locations where needed.
+   * Only draw the children whose cells can be seen.  When scrolling
+   * ourselves, that's the viewport.  Otherwise it's the canvas's clip
+   * bounds, which inside a ScrollView (drawn in software) is the part
+   * of us being redrawn.  A hardware canvas records a display list
+   * which is replayed as a parent scrolls, so its clip is all of us,
+   * less the padding if we clip to it.  Spanning children are
+   * found from any cell they cover, so those which start outside the
+   * clip are still drawn.  Children are expected to draw within their
+   * cells; one that an animation or transform moves elsewhere is only
+   * drawn while its own cell can be seen.
    */
-  private void countCells() {
-    if( !need_count ) {
+  private void drawChildren(Canvas canvas)
+  {
+    if( adapter != null || (!scrollable &&
+	(isLayoutRequested() ||
+	 getChildCount() + drawnCount() != solver.getCellCount())) )
+    {
+      // Cells and children don't (yet) line up
+      super.dispatchDraw(canvas);
       return;
     }
+    if( !cullable() ) {
+      drawAllChildren(canvas);
+      return;
+    }
+
+    if( scrollable ? !findVisibleCells() : !findClippedCells(canvas) )
+      return;
+    final long time = getDrawingTime();
+    final Rect v = visible_cells;
+    final int n = solver.findCells(v.left, v.top, v.right, v.bottom);
     final int count = getChildCount();
-    ncol = nrow = 0;
-    max_col_span = max_row_span = 0;
-    int x = 0, y = 0;
-    for( int i = 0; i < count; ++i ) {
-      final View child = getChildAt(i);
-      if( child != null && child.getVisibility() != View.GONE ) {
-        LayoutParams lp = (LayoutParams) child.getLayoutParams();
-        if( lp.colSpan <= 0 ) lp.colSpan = 1;
-        if( lp.rowSpan <= 0 ) lp.rowSpan = 1;
-        if( lp.gridx < 0 ) lp.gridx = x;
-        if( lp.gridy < 0 ) lp.gridy = y;
-        x = lp.gridx;
-        y = lp.gridy;
-        if( x + lp.colSpan > ncol ) ncol = x + lp.colSpan;
-        if( y + lp.rowSpan > nrow ) nrow = y + lp.rowSpan;
-        x += lp.colSpan;
-        if( lp.colSpan > max_col_span ) max_col_span = lp.colSpan;
-        if( lp.rowSpan > max_row_span ) max_row_span = lp.rowSpan;
+    for( int k = 0; k < n; ++k ) {
+      final int i = solver.getFoundCell(k);
+      if( i < count && getChildAt(i).getZ() != 0 ) {
+	// ViewGroup draws these in Z order
+	drawAllChildren(canvas);
+	return;
       }
     }
-    need_count = false;
+    for( int k = 0; k < n; ++k ) {
+      final int i = solver.getFoundCell(k);
+      if( i >= count ) continue;
+      final View child = getChildAt(i);
+      if( child.getVisibility() == View.VISIBLE ||
+	  child.getAnimation() != null )
+	drawChild(canvas, child, time);
+    }
   }
 
-
-
   /*
-  // Utility:  Force all items in sizes[] to be the same
-  static private void force_uniform(int[] sizes) {
-    int max_size = 0;
-    int i, n = sizes.length;
-    for( i = 0; i < n; ++i )
-      if( sizes[i] > max_size ) max_size = sizes[i];
-    for( i = 0; i < n; ++i )
-      sizes[i] = max_size;
+   * Can drawChildren() draw just the children in view, in cell order?
+   * Not with a layout animation, a running layout transition, or
+   * removed children still animating out, all of which only ViewGroup
+   * knows how to draw; nor if the children are drawn in some other
+   * order.
+   */
+  private boolean cullable() {
+    if( getLayoutAnimation() != null || isChildrenDrawingOrderEnabled() ||
+	transitions > 0 )
+      return false;
+    final LayoutTransition lt = getLayoutTransition();
+    if( lt != null && lt.isRunning() ) return false;
+    for( int k = leaving.size() - 1; k >= 0; --k ) {
+      final Animation a = leaving.get(k).getAnimation();
+      if( a == null || a.hasEnded() ) leaving.remove(k);
+    }
+    return leaving.isEmpty();
   }
-  */
-
-
-
-        // PRIVATE ROUTINES
-
 
-  // Given a gridbox & child, compute the current size of
-  // the cell(s) occupied by the child.
+  // Let ViewGroup draw everything.  A scrolling grid lays out all of
+  // its children first, since those out of view may not be in place.
+  private void drawAllChildren(Canvas canvas) {
+    if( scrollable ) {
+      final int count = Math.min(getChildCount(), solver.getCellCount());
+      for( int i = 0; i < count; ++i ) placeChild(i);
+    }
+    super.dispatchDraw(canvas);
+  }
 
-  private final int computeCellWid(final LayoutParams lp)
-  {
-    if( lp.colSpan == 1 ) return wids[lp.gridx];
-    return computeCellSize(lp.gridx, lp.colSpan, wids);
+  @Override
+  public void startViewTransition(View view) {
+    super.startViewTransition(view);
+    ++transitions;
   }
 
-  private final int computeCellHgt(final LayoutParams lp)
-  {
-    if( lp.rowSpan == 1 ) return hgts[lp.gridy];
-    return computeCellSize(lp.gridy, lp.rowSpan, hgts);
+  @Override
+  public void endViewTransition(View view) {
+    super.endViewTransition(view);
+    if( transitions > 0 ) --transitions;
   }
 
-  private final int computeCellSize(int idx, int n, int[] sizes)
-  {
-    int wid = 0;
-    for(int i=0; i<n; ++i) wid += sizes[idx++];
-    return wid;
+  /*
+   * Find the columns and rows within the canvas's clip, for drawing
+   * the fills and lines, and leave them in clip_tracks.
+   */
+  private boolean clippedTracks(Canvas canvas) {
+    if( solver.getColumnCount() <= 0 || solver.getRowCount() <= 0 ||
+	!canvas.getClipBounds(clip) )
+      return false;
+    final Rect t = clip_tracks;
+    t.left = Math.max(solver.findColumn(clip.left), 0);
+    t.right = Math.min(solver.findColumn(clip.right - 1),
+			solver.getColumnCount() - 1);
+    t.top = Math.max(solver.findRow(clip.top), 0);
+    t.bottom = Math.min(solver.findRow(clip.bottom - 1),
+			solver.getRowCount() - 1);
+    return t.left <= t.right && t.top <= t.bottom;
   }
 
+  // The drawn cells within the clip
+  private void drawCells(Canvas canvas) {
+    final int first = getChildCount();
+    if( solver.getCellCount() != first + drawn.size() ) return;
+    final CellRenderer r = getCellRenderer();
+    final Rect t = clip_tracks;
+    final int n = solver.findCells(t.left, t.top, t.right, t.bottom);
+    for( int k = 0; k < n; ++k ) {
+      final int i = solver.getFoundCell(k);
+      if( i < first ) continue;
+      solver.layoutCell(i);
+      final int x = solver.getFrameX(i);
+      final int y = solver.getFrameY(i);
+      r.draw(canvas, drawn, i - first, x, y,
+	  x + solver.getFrameWidth(i), y + solver.getFrameHeight(i));
+    }
+  }
 
-  // Utility: adjust size and weight arrays based on the location, size and
-  // weight of the specified child.
-  private static void
-  computeWidHgtUtil(int idx, int ncell, int wid, float weight,
-    int[] wids, float[] weights)
-  {
-    // 1 set the specified column weight(s) to the max of their current
-    //   value and the weight of this widget.
-    //
-    // 2 find out if the available space in the indicated column(s)
-    //   is enough to satisfy this widget.  If not, distribute the
-    //   excess size by column weights.
-    //
-    //   The excess may not divide evenly into the number of cells.
-    //   The remainder will also be distributed evenly to some of the
-    //   cells.  Make a Bresenham walk to do this.
+  // One rectangle per odd row and column in view
+  private void drawFills(Canvas canvas) {
+    final Rect t = clip_tracks;
+    final int x0 = solver.getColumnX(t.left);
+    final int x1 = solver.getColumnX(t.right + 1);
+    final int y0 = solver.getRowY(t.top);
+    final int y1 = solver.getRowY(t.bottom + 1);
+    if( col_paint != null )
+      for( int c = t.left | 1; c <= t.right; c += 2 )
+	canvas.drawRect(solver.getColumnX(c), y0,
+			solver.getColumnX(c + 1), y1, col_paint);
+    if( row_paint != null )
+      for( int r = t.top | 1; r <= t.bottom; r += 2 )
+	canvas.drawRect(x0, solver.getRowY(r),
+			x1, solver.getRowY(r + 1), row_paint);
+  }
 
-    if( idx < 0 || idx + ncell > wids.length ) {
-      Log.e(TAG, "computeWidHgtUtil: idx="+idx + ", ncell="+ncell +
-        ", length="+wids.length);
-      return;
+  /*
+   * Draw the lines between the cells in view, and the grid's outline,
+   * in one drawLines() call.  A line is left out wherever a spanning
+   * cell covers both sides of it, and what's left of each line is
+   * joined up into as few segments as possible.  Lines are centered on
+   * the track edges, except that the outline is drawn just inside the
+   * grid.
+   */
+  private void drawGridLines(Canvas canvas) {
+    final Rect t = clip_tracks;
+    final int ncol = solver.getColumnCount();
+    final int nrow = solver.getRowCount();
+    final float half = line_paint.getStrokeWidth() / 2;
+    nline_pts = 0;
+
+    // Vertical lines, at the left edge of each column and the right
+    // edge of the last one.
+    final float top = solver.getRowY(0), bottom = solver.getRowY(nrow);
+    for( int c = t.left; c <= t.right + 1; ++c ) {
+      final float x = edge(solver.getColumnX(c), c, ncol, half);
+      int start = -1;
+      for( int r = t.top; r <= t.bottom + 1; ++r ) {
+	final boolean open = r <= t.bottom &&
+	    (c == 0 || c == ncol || !spanned(c - 1, r, c, r));
+	if( open && start < 0 ) start = r;
+	else if( !open && start >= 0 ) {
+	  addLine(x, Math.max(solver.getRowY(start) - half, top),
+		  x, Math.min(solver.getRowY(r) + half, bottom));
+	  start = -1;
+	}
+      }
     }
 
-    if( ncell == 1 )            // simple case
-    {
-      if( weights[idx] < weight ) weights[idx] = weight;
-      if( wids[idx] < wid ) wids[idx] = wid;
-      return;
+    // Horizontal lines
+    final float left = solver.getColumnX(0), right = solver.getColumnX(ncol);
+    for( int r = t.top; r <= t.bottom + 1; ++r ) {
+      final float y = edge(solver.getRowY(r), r, nrow, half);
+      int start = -1;
+      for( int c = t.left; c <= t.right + 1; ++c ) {
+	final boolean open = c <= t.right &&
+	    (r == 0 || r == nrow || !spanned(c, r - 1, c, r));
+	if( open && start < 0 ) start = c;
+	else if( !open && start >= 0 ) {
+	  addLine(Math.max(solver.getColumnX(start) - half, left), y,
+		  Math.min(solver.getColumnX(c) + half, right), y);
+	  start = -1;
+	}
+      }
     }
+    if( nline_pts > 0 ) canvas.drawLines(line_pts, 0, nline_pts, line_paint);
+  }
 
-/*
-    Puzzle:  imagine all single-cells are 4 pixels wide.  Imagine that
-    there are some double-cells which are 16 pixels wide.  Arranged like
-    this:
-
-    naive (allocate excess size of double-wides evenly to columns):
-          ....  ####    ....
-          ####  ................
-        ................  ####
-
-    ideal:
-        ....    ####    ....
-        ####................
-        ................####
-
-    How can we achive the ideal layout?
-*/
+  // Where to draw the line at track edge k of n
+  private static float edge(int pos, int k, int n, float half) {
+    return k == 0 ? pos + half : k == n ? pos - half : pos;
+  }
 
-    // Conditionally assign weight to columns.
-    for( int i=0; i < ncell; ++i)
-      if( weight > weights[idx+i] ) weights[idx+i] = weight;
+  // Are (c0,r0) and (c1,r1) both covered by the same cell?
+  private boolean spanned(int c0, int r0, int c1, int r1) {
+    final int i = solver.getCellAt(c0, r0);
+    return i >= 0 && solver.getCellAt(c1, r1) == i;
   }
 
+  private void addLine(float x0, float y0, float x1, float y1) {
+    if( nline_pts + 4 > line_pts.length )
+      line_pts = Arrays.copyOf(line_pts, line_pts.length * 2);
+    line_pts[nline_pts++] = x0;
+    line_pts[nline_pts++] = y0;
+    line_pts[nline_pts++] = x1;
+    line_pts[nline_pts++] = y1;
+  }
 
   /**
-   * Utility: distribute excess space across a number of cells.
-   * weight of the specified child.
-   * @param ncell    number of columsn/rows in region
-   * @param size     total available size
-   * @param sizes    array of widths/heights
-   * @param stot     total size
-   * @param weights  weights of the columns/rows
-   * @param wtot     total weight
-   * @param uniform  true if this function should try to make all sizes the same
+   * ViewGroup finds the child under a touch by checking every child in
+   * turn.  We know which cell is under it from the track offsets, so
+   * look that up instead and deliver the gesture straight to the child
+   * in that cell.  Everything else (the child declining the touch,
+   * interception) is handled the way ViewGroup would.  Where the cell
+   * alone can't say which child is under the touch, ViewGroup finds
+   * it:  a touch which misses every child, lands on a drawn cell or on
+   * a cell which more than one child covers, or on a child with a
+   * transform.  If motion event splitting is enabled and another
+   * pointer comes down on a different child, the gesture is handed
+   * back to ViewGroup, which can split it between the two.
    */
-  private static void
-  distributeExcess(int ncell, int size, int[] sizes, int stot,
-	float[] weights, float wtot, boolean uniform)
+  @Override
+  public boolean dispatchTouchEvent(MotionEvent ev)
   {
-    if( ncell > sizes.length ) {
-      Log.e(TAG, "distributeExcess: ncell="+ncell + ", length="+sizes.length);
-      return;
+    final int action = ev.getActionMasked();
+    if( action == MotionEvent.ACTION_DOWN ) {
+      touch_target = null;
+      intercept_all = false;
+      disallow_intercept = false;
+      // If the cells are out of date, or don't settle which child is
+      // under the touch, only ViewGroup can find the child.
+      View child = null;
+      if( cellsCurrent() && onFilterTouchEventForSecurity(ev) )
+	child = findTouchTarget(ev.getX(), ev.getY());
+      by_grid = child != null;
+      if( !by_grid ) return super.dispatchTouchEvent(ev);
+      if( !onInterceptTouchEvent(ev) && dispatchToChild(ev, child, false) ) {
+	touch_target = child;
+	return true;
+      }
+      // Nobody else wants it.  Have ViewGroup deliver the gesture to
+      // us, and keep it from searching the children for a target.
+      intercept_all = true;
+      return super.dispatchTouchEvent(ev);
+    }
+    if( !by_grid || touch_target == null )
+      return super.dispatchTouchEvent(ev);
+
+    if( action == MotionEvent.ACTION_POINTER_DOWN &&
+	isMotionEventSplittingEnabled() ) {
+      // If we can't tell who's under the new pointer, ViewGroup can.
+      final int k = ev.getActionIndex();
+      final View other = findTouchTarget(ev.getX(k), ev.getY(k));
+      if( other != touch_target ) {
+	handOff(ev);
+	return super.dispatchTouchEvent(ev);
+      }
     }
 
-    // First, is there excess size to distribute?
-    if (size <= stot)
-      return;
+    final View child = touch_target;
+    if( action == MotionEvent.ACTION_UP ||
+	action == MotionEvent.ACTION_CANCEL )
+      touch_target = null;
+    if( !disallow_intercept && onInterceptTouchEvent(ev) ) {
+      // We're taking the gesture away from the child.
+      dispatchToChild(ev, child, true);
+      touch_target = null;
+      intercept_all = true;
+      return true;
+    }
+    return onFilterTouchEventForSecurity(ev) &&
+	    dispatchToChild(ev, child, false);
+  }
 
-    int i;
+  /*
+   * A pointer has come down on a child other than the one we've been
+   * giving the gesture to, and only ViewGroup can split a gesture
+   * between children.  It hasn't seen this one, so cancel it for our
+   * child and replay to ViewGroup the pointers that were already down;
+   * then ViewGroup can take the new pointer itself.
+   */
+  private void handOff(MotionEvent ev) {
+    dispatchToChild(ev, touch_target, true);
+    touch_target = null;
+    by_grid = false;
+    final int n = ev.getPointerCount(), skip = ev.getActionIndex();
+    if( props == null || props.length < n ) {
+      props = new MotionEvent.PointerProperties[n];
+      coords = new MotionEvent.PointerCoords[n];
+      for( int k = 0; k < n; ++k ) {
+	props[k] = new MotionEvent.PointerProperties();
+	coords[k] = new MotionEvent.PointerCoords();
+      }
+    }
+    int m = 0;
+    for( int k = 0; k < n; ++k ) {
+      if( k == skip ) continue;
+      ev.getPointerProperties(k, props[m]);
+      ev.getPointerCoords(k, coords[m]);
+      final int action = m == 0 ? MotionEvent.ACTION_DOWN :
+	MotionEvent.ACTION_POINTER_DOWN |
+	  (m << MotionEvent.ACTION_POINTER_INDEX_SHIFT);
+      ++m;
+      final MotionEvent e = MotionEvent.obtain(ev.getDownTime(),
+	  ev.getEventTime(), action, m, props, coords, ev.getMetaState(),
+	  ev.getButtonState(), ev.getXPrecision(), ev.getYPrecision(),
+	  ev.getDeviceId(), ev.getEdgeFlags(), ev.getSource(), ev.getFlags());
+      super.dispatchTouchEvent(e);
+      e.recycle();
+    }
+  }
 
-    if (uniform) {
-      // Distribute to make all equal
-      int max_size = 0;
-      for( i=0; i < ncell; ++i )
-	if( sizes[i] > max_size ) max_size = sizes[i];
-      if (size >= max_size * ncell) {
-	// Lucky, it will all fit
-	for( i = 0; i < ncell; ++i )
-	  sizes[i] = max_size;
-	stot = max_size * ncell;
-      } else {
-	// Assign new weights, based on need
-	wtot = 0;
-	for (i=0; i<ncell; ++i) {
-	  int d = max_size - sizes[i];
-	  weights[i] = d;
-	  wtot += d;
+  @Override
+  public void requestDisallowInterceptTouchEvent(boolean disallow)
+  {
+    disallow_intercept = disallow;
+    super.requestDisallowInterceptTouchEvent(disallow);
+  }
+
+  @Override
+  public boolean onInterceptTouchEvent(MotionEvent ev)
+  {
+    if( intercept_all ) return true;
+    if( !scrollable ) return false;
+
+    // Steal the touch stream from the children once it turns into a
+    // drag.  onTouchEvent() does the actual scrolling.
+    final int x = (int) ev.getX();
+    final int y = (int) ev.getY();
+    switch( ev.getActionMasked() ) {
+      case MotionEvent.ACTION_DOWN:
+	lastX = x;
+	lastY = y;
+	// A touch during a fling stops it and starts a drag
+	dragging = !scroller.isFinished();
+	break;
+      case MotionEvent.ACTION_MOVE:
+	if( !dragging && pastTouchSlop(x, y) ) startDrag(x, y);
+	break;
+      case MotionEvent.ACTION_UP:
+      case MotionEvent.ACTION_CANCEL:
+	dragging = false;
+	break;
+    }
+    return dragging;
+  }
+
+  @Override
+  public boolean onTouchEvent(MotionEvent ev)
+  {
+    if( !scrollable ) return super.onTouchEvent(ev);
+
+    if( velocityTracker == null ) velocityTracker = VelocityTracker.obtain();
+    velocityTracker.addMovement(ev);
+
+    final int x = (int) ev.getX();
+    final int y = (int) ev.getY();
+    switch( ev.getActionMasked() ) {
+      case MotionEvent.ACTION_DOWN:
+	if( !scroller.isFinished() ) scroller.abortAnimation();
+	lastX = x;
+	lastY = y;
+	break;
+      case MotionEvent.ACTION_MOVE:
+	if( !dragging && pastTouchSlop(x, y) ) startDrag(x, y);
+	if( dragging ) {
+	  scrollBy(lastX - x, lastY - y);
+	  lastX = x;
+	  lastY = y;
 	}
+	break;
+      case MotionEvent.ACTION_UP:
+	if( dragging ) {
+	  velocityTracker.computeCurrentVelocity(1000, maxFling);
+	  final int vx = (int) velocityTracker.getXVelocity();
+	  final int vy = (int) velocityTracker.getYVelocity();
+	  if( Math.abs(vx) > minFling || Math.abs(vy) > minFling )
+	    fling(-vx, -vy);
+	}
+	// Fall through
+      case MotionEvent.ACTION_CANCEL:
+	dragging = false;
+	velocityTracker.recycle();
+	velocityTracker = null;
+	break;
+    }
+    return true;
+  }
+
+  @Override
+  public void scrollTo(int x, int y)
+  {
+    if( scrollable ) {
+      x = Math.max(0, Math.min(x, maxScrollX()));
+      y = Math.max(0, Math.min(y, maxScrollY()));
+    }
+    super.scrollTo(x, y);
+  }
+
+  @Override
+  public void computeScroll()
+  {
+    if( scroller.computeScrollOffset() ) {
+      scrollTo(scroller.getCurrX(), scroller.getCurrY());
+      postInvalidateOnAnimation();
+    }
+  }
+
+  @Override
+  protected void onScrollChanged(int l, int t, int oldl, int oldt)
+  {
+    super.onScrollChanged(l, t, oldl, oldt);
+    if( adapter != null ) updateVirtualChildren(false);
+    else if( scrollable && !isLayoutRequested() ) placeVisibleChildren();
+  }
+
+  @Override
+  protected int computeHorizontalScrollRange() {
+    if( !scrollable ) return super.computeHorizontalScrollRange();
+    return solver.getGridWidth() + getPaddingLeft() + getPaddingRight();
+  }
+
+  @Override
+  protected int computeVerticalScrollRange() {
+    if( !scrollable ) return super.computeVerticalScrollRange();
+    return solver.getGridHeight() + getPaddingTop() + getPaddingBottom();
+  }
+
+  @Override
+  public LayoutParams generateLayoutParams(AttributeSet attrs)
+  {
+    return new Gridbox.LayoutParams(getContext(), attrs);
+  }
+
+  @Override
+  protected LayoutParams generateLayoutParams(ViewGroup.LayoutParams p)
+  {
+    return new Gridbox.LayoutParams(p);
+  }
+
+  @Override
+  protected LayoutParams generateDefaultLayoutParams()
+  {
+    return new Gridbox.LayoutParams(
+      LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT);
+  }
+
+  @Override
+  protected boolean checkLayoutParams(ViewGroup.LayoutParams p) {
+    return p instanceof Gridbox.LayoutParams;
+  }
+
+
+  // Other public methods
+
+  /**
+   * Set the default child gravity.  All child cells which do not specify a
+   * layout_gravity value will receive this value.
+   */
+  public Gridbox setGravity(int g) {
+    if( gravity != g ) {
+      gravity = g;
+      requestLayout();
+    }
+    return this;
+  }
+
+  /**
+   * Set inner margin.  This is the spacing that will be used between all
+   * child cells which do not specify a margin.
+   */
+  public Gridbox setInnerMargin(int m) {
+    if( innerMargin != m ) {
+      innerMargin = m;
+      requestLayout();
+    }
+    return this;
+  }
+
+  /**
+   * Draw lines of the given color and width (in pixels) between the
+   * cells and around the grid.  Lines are not drawn through spanning
+   * cells.  They're centered on the edges between rows and columns,
+   * so an inner margin at least as wide keeps them off the children.
+   * A color of 0 turns them off.
+   */
+  public Gridbox setGridLines(int color, int width) {
+    if( color == 0 ) line_paint = null;
+    else {
+      if( line_paint == null ) line_paint = new Paint();
+      line_paint.setColor(color);
+      line_paint.setStrokeWidth(Math.max(width, 1));
+    }
+    invalidate();
+    return this;
+  }
+
+  /**
+   * Fill every other row (rows 1, 3, ...) with the given color, under
+   * the children.  A color of 0 turns it off.
+   */
+  public Gridbox setAlternateRowColor(int color) {
+    row_paint = fillPaint(row_paint, color);
+    invalidate();
+    return this;
+  }
+
+  /**
+   * Fill every other column (columns 1, 3, ...) with the given color.
+   */
+  public Gridbox setAlternateColumnColor(int color) {
+    col_paint = fillPaint(col_paint, color);
+    invalidate();
+    return this;
+  }
+
+  private static Paint fillPaint(Paint p, int color) {
+    if( color == 0 ) return null;
+    if( p == null ) p = new Paint();
+    p.setColor(color);
+    return p;
+  }
+
+  /**
+   * Make this Gridbox a layout boundary.  Normally a child asking for
+   * a new layout has every ancestor up to the window measured and laid
+   * out again.  A layout boundary measures itself again with the specs
+   * it was last given instead, which only measures the children that
+   * asked.  If that doesn't change what it would ask of its own parent
+   * (its preferred size), it lays itself out and the request goes no
+   * further.  Otherwise the request is passed up as usual.
+   *
+   * This only works if the parent gave the Gridbox an exact size, and
+   * only for requests from the children; a change to the Gridbox's own
+   * visibility, LayoutParams or minimum size is always passed up.
+   */
+  public Gridbox setLayoutBoundary(boolean b) {
+    layout_boundary = b;
+    return this;
+  }
+
+  public boolean isLayoutBoundary() {
+    return layout_boundary;
+  }
+
+  /**
+   * Choose how children without a grid position are placed.
+   * PLACE_NEXT, the default, puts each just to the right of the
+   * previous child.  PLACE_DENSE places the children which have a
+   * position first, then packs the rest in row by row, 'columns'
+   * wide, each in the first free space big enough for it.  Once a
+   * child has been placed its LayoutParams hold the position, so
+   * this only affects children which haven't been laid out yet.
+   */
+  public Gridbox setAutoPlacement(int mode, int columns) {
+    solver.setAutoPlacement(mode, columns);
+    need_count = true;
+    requestLayout();
+    return this;
+  }
+
+  /**
+   * In strict mode, children covering a cell another child already
+   * covers are logged as the grid is counted or they move.
+   */
+  public Gridbox setStrict(boolean b) {
+    solver.setStrict(b);
+    need_count = true;
+    requestLayout();
+    return this;
+  }
+
+  /**
+   * Return the number of children which cover a cell some other child
+   * covers as well:  0 if none overlap.
+   */
+  public int getOverlapCount() {
+    if( adapter == null ) countCells();
+    return solver.getOverlapCount();
+  }
+
+  /**
+   * Declare the column widths, as in gridbox:column_sizes:  a list of
+   * "auto", dimensions such as "96dp", and fractions of the remaining
+   * space such as "1fr".  Columns past the end of the list take the
+   * last entry.  Null or "" sizes every column from its children.
+   */
+  public Gridbox setColumnSizes(String sizes) {
+    setTrackSizes(sizes, true);
+    requestLayout();
+    return this;
+  }
+
+  /** Declare the row heights, as in gridbox:row_sizes. */
+  public Gridbox setRowSizes(String sizes) {
+    setTrackSizes(sizes, false);
+    requestLayout();
+    return this;
+  }
+
+  /**
+   * Declare the column widths directly:  kinds[] holds TRACK_AUTO,
+   * TRACK_FIXED or TRACK_FRACTION for each column, and sizes[] the
+   * width in pixels or the fraction.  See GridSolver.setColumnSizes().
+   */
+  public Gridbox setColumnSizes(int[] kinds, float[] sizes) {
+    solver.setColumnSizes(kinds, sizes);
+    requestLayout();
+    return this;
+  }
+
+  /** Declare the row heights directly; see setColumnSizes(). */
+  public Gridbox setRowSizes(int[] kinds, float[] sizes) {
+    solver.setRowSizes(kinds, sizes);
+    requestLayout();
+    return this;
+  }
+
+  /**
+   * Measure children in declared columns once.  Normally a child is
+   * asked its size with the specs Gridbox was given, and then, if it
+   * fills its cell, again with the cell's size.  In this mode the
+   * columns are sized first, from the children in auto columns, and
+   * a child whose columns are all declared (see setColumnSizes()) is
+   * then asked once with the width it will get, exactly if it fills
+   * horizontally.  Useful when children are slow to measure, such as
+   * long text or nested Gridboxes.
+   *
+   * Only declared columns, fixed or fractional, count.  Auto columns,
+   * weighted or not, and uniform columns (setForceUniformWidth())
+   * depend on the sizes of all their children, so children in them
+   * are measured as usual; and rows are never settled first, so a
+   * child filling its cell vertically may still be asked again.
+   */
+  public Gridbox setMeasureOnce(boolean b) {
+    if( measure_once != b ) {
+      measure_once = b;
+      requestLayout();
+    }
+    return this;
+  }
+
+  public boolean isMeasureOnce() {
+    return measure_once;
+  }
+
+  /**
+   * Return the number of times a child's size was found in its measure
+   * cache instead of measuring it, since resetMeasureCacheStats().
+   * Each child remembers its sizes for the last few sets of
+   * constraints it was measured with, until it next asks for a layout.
+   */
+  public int getMeasureCacheHits() {
+    return cache_hits;
+  }
+
+  /** Return the number of times a child had to be measured. */
+  public int getMeasureCacheMisses() {
+    return cache_misses;
+  }
+
+  public void resetMeasureCacheStats() {
+    cache_hits = cache_misses = 0;
+  }
+
+  /**
+   * Lay the children out according to a template:  child i takes the
+   * position, span, gravity, weights and margins of the template's
+   * cell i, in place of its own, and the template's row and column
+   * sizes are declared.  The cells were placed and counted when the
+   * template was built; if there's a visible child for every cell and
+   * no more, the Gridbox copies that instead of counting them itself.
+   * Children past the end of the template keep their own layout.
+   * Pass null to go back to the children's own layout; the track
+   * sizes stay as they are.
+   */
+  public Gridbox setTemplate(GridTemplate t) {
+    template = t;
+    if( t != null ) {
+      solver.setColumnSizes(t.col_kinds, t.col_sizes);
+      solver.setRowSizes(t.row_kinds, t.row_sizes);
+    }
+    need_count = true;
+    requestLayout();
+    return this;
+  }
+
+  public GridTemplate getTemplate() {
+    return template;
+  }
+
+  /**
+   * Line this Gridbox's columns up with those of the other members of
+   * a group:  each column is as wide as the widest column in that
+   * position in any member that's attached to a window.  Members only
+   * lay out again when the group changes their column widths.  Pass
+   * null to leave the group.
+   */
+  public Gridbox setColumnGroup(GridColumnGroup g) {
+    if( col_group == g ) return this;
+    if( col_group != null ) col_group.leave(this);
+    col_group = g;
+    col_group_gen = -1;
+    if( g != null ) {
+      if( isAttachedToWindow() ) g.join(this);
+    } else
+      solver.setMinColumnWidths(null, 0);
+    requestLayout();
+    return this;
+  }
+
+  public GridColumnGroup getColumnGroup() {
+    return col_group;
+  }
+
+  /** Likewise, line the rows up with those of a group. */
+  public Gridbox setRowGroup(GridRowGroup g) {
+    if( row_group == g ) return this;
+    if( row_group != null ) row_group.leave(this);
+    row_group = g;
+    row_group_gen = -1;
+    if( g != null ) {
+      if( isAttachedToWindow() ) g.join(this);
+    } else
+      solver.setMinRowHeights(null, 0);
+    requestLayout();
+    return this;
+  }
+
+  public GridRowGroup getRowGroup() {
+    return row_group;
+  }
+
+  /**
+   * Return the cells this Gridbox draws itself, without a view for
+   * each, creating them if need be; see DrawnCells.  They share the
+   * grid with the children.  They're ignored in virtualized mode.
+   */
+  public DrawnCells getDrawnCells() {
+    if( drawn == null ) drawn = new DrawnCells(this);
+    return drawn;
+  }
+
+  /*
+   * The drawn cells' drawables have us as their callback (see
+   * DrawnCells.setDrawable()), so that they can redraw and animate,
+   * and they share our drawable state.
+   */
+  @Override
+  protected boolean verifyDrawable(Drawable who) {
+    return super.verifyDrawable(who) ||
+	(drawn != null && who.getCallback() == this);
+  }
+
+  @Override
+  protected void drawableStateChanged() {
+    super.drawableStateChanged();
+    if( drawn != null && drawn.applyState(getDrawableState()) ) invalidate();
+  }
+
+  @Override
+  public void jumpDrawablesToCurrentState() {
+    super.jumpDrawablesToCurrentState();
+    if( drawn != null ) drawn.jumpToCurrentState();
+  }
+
+  /**
+   * Set the renderer which measures and draws the drawn cells.  Every
+   * cell is measured again.
+   */
+  public Gridbox setCellRenderer(CellRenderer r) {
+    renderer = r;
+    if( drawn != null ) drawn.invalidateSizes();
+    requestLayout();
+    invalidate();
+    return this;
+  }
+
+  /**
+   * Return the cell renderer.  The default one draws 14sp text, with
+   * 4dp of padding.
+   */
+  public CellRenderer getCellRenderer() {
+    if( renderer == null ) {
+      final DisplayMetrics dm = getResources().getDisplayMetrics();
+      final TextPaint p = new TextPaint(TextPaint.ANTI_ALIAS_FLAG);
+      p.setTextSize(14 * dm.scaledDensity);
+      renderer = new CellRenderer(p, Math.round(4 * dm.density));
+    }
+    return renderer;
+  }
+
+  /**
+   * Start a batch of changes.  Until the matching endUpdate(), adding
+   * and removing children, setGravity(), setInnerMargin() and the like
+   * don't lay out or redraw anything, and children aren't fitted into
+   * the grid one at a time.  Batches may be nested; only the outermost
+   * endUpdate() has any effect.  Don't leave a batch open:  the
+   * Gridbox won't be laid out again until it's closed.
+   */
+  public void beginUpdate() {
+    ++update_depth;
+  }
+
+  /**
+   * Finish a batch of changes.  The grid is counted again if children
+   * were added or removed, and then there is one requestLayout() and
+   * one invalidate() if anything asked for them.
+   */
+  public void endUpdate() {
+    if( update_depth <= 0 || --update_depth > 0 ) return;
+    if( adapter == null ) countCells();
+    if( pending_layout ) {
+      pending_layout = false;
+      requestLayout();
+    }
+    if( pending_invalidate ) {
+      pending_invalidate = false;
+      invalidate();
+    }
+  }
+
+  /**
+   * Run r between beginUpdate() and endUpdate().
+   */
+  public void runBatch(Runnable r) {
+    beginUpdate();
+    try {
+      r.run();
+    } finally {
+      endUpdate();
+    }
+  }
+
+  /**
+   * Switch to virtualized mode.  Cells come from the adapter instead of
+   * from child views, and views are only created for the cells which
+   * can be seen.  Any existing children are removed.  Pass null to
+   * return to ordinary mode.
+   */
+  public Gridbox setAdapter(GridboxAdapter a) {
+    if( adapter != null ) adapter.unregisterDataSetObserver(observer);
+    removeAllViews();
+    active.clear();
+    scrap.clear();
+    bound_cells.set(-1, -1, -1, -1);
+    adapter = a;
+    if( adapter != null ) {
+      adapter.registerDataSetObserver(observer);
+      for( int i = adapter.getViewTypeCount(); i > 0; --i )
+        scrap.add(new ArrayList<View>());
+    }
+    solver.setCellCount(0);
+    need_count = true;
+    need_bind = false;
+    requestLayout();
+    return this;
+  }
+
+  public GridboxAdapter getAdapter() {
+    return adapter;
+  }
+
+  /**
+   * Enable or disable scrolling.  A scrollable Gridbox lets its
+   * children be as large as they like, and scrolls in both directions
+   * to show them.
+   */
+  public Gridbox setScrollable(boolean s) {
+    if( scrollable != s ) {
+      scrollable = s;
+      if( !s ) {
+	scroller.abortAnimation();
+	scrollTo(0, 0);
       }
+      requestLayout();
     }
+    return this;
+  }
 
-    // Finally, distribute the excess by weight.
-    if (wtot > 0) {
-      // Distribute excess by weight
-      final float excess = size - stot;
-      final float step = excess/wtot;
-      float e1 = 0, e2 = 0;
-      for( i=0; i < ncell; ++i )
-      {
-	e2 += step*weights[i];
-	sizes[i] += (int)e2 - (int)e1;
-	e1 = e2;
+  /**
+   * Keep the first n rows at the top while the rest scroll.  Only
+   * applies when scrollable, and not in virtualized mode.  The frozen
+   * rows share the grid's column widths, and scrolling only draws them
+   * in a different place; nothing is laid out again.  A child spanning
+   * from frozen rows into the others is drawn with the frozen rows
+   * only.
+   */
+  public Gridbox setFrozenRows(int n) {
+    if( frozen_rows != n ) {
+      frozen_rows = Math.max(n, 0);
+      requestLayout();
+      invalidate();
+    }
+    return this;
+  }
+
+  public int getFrozenRows() {
+    return frozen_rows;
+  }
+
+  /** Likewise, keep the first n columns at the left. */
+  public Gridbox setFrozenColumns(int n) {
+    if( frozen_cols != n ) {
+      frozen_cols = Math.max(n, 0);
+      requestLayout();
+      invalidate();
+    }
+    return this;
+  }
+
+  public int getFrozenColumns() {
+    return frozen_cols;
+  }
+
+  public boolean isScrollable() {
+    return scrollable;
+  }
+
+  /**
+   * Start a fling with the given velocity in pixels per second.
+   */
+  public void fling(int vx, int vy) {
+    if( !scrollable ) return;
+    scroller.fling(getScrollX(), getScrollY(), vx, vy,
+		    0, maxScrollX(), 0, maxScrollY());
+    postInvalidateOnAnimation();
+  }
+
+  /**
+   * Return the child which occupies the given cell, or null if there
+   * is none.  In virtualized mode, only cells which currently have a
+   * view are found.
+   */
+  public View getChildAtCell(int col, int row) {
+    updateCells();
+    return cellView(solver.getCellAt(col, row));
+  }
+
+  /**
+   * Find the children which occupy any of the cells in columns
+   * col0-col1 and rows row0-row1, inclusive, and add them to out.
+   * Each child is added once, even if it spans several of the cells.
+   * Returns the number of children added.
+   */
+  public int findChildrenInCellRange(int col0, int row0, int col1, int row1,
+    List<View> out)
+  {
+    updateCells();
+    final int n = solver.findCells(col0, row0, col1, row1);
+    int added = 0;
+    for( int k = 0; k < n; ++k ) {
+      final View child = cellView(solver.getFoundCell(k));
+      if( child != null ) {
+	out.add(child);
+	++added;
       }
     }
+    return added;
   }
 
-  // Given a child, cell position, and cell span, compute the size
-  // and placement of the child.
-  private void
-  layoutChild(View child, int[] xs, int[] ys)
+
+  // Utilities
+
+  /**
+   * Bring the cells up to date with the children (or the adapter) if
+   * they've changed since the last measure, so that they can be looked
+   * up by grid position.
+   */
+  private void updateCells() {
+    if( adapter != null ) {
+      if( need_count ) loadCells();
+      return;
+    }
+    if( solver.getCellCount() != getChildCount() + drawnCount() )
+      need_count = true;
+    countCells();
+  }
+
+  // Can the children be found from their cells right now?
+  private boolean cellsCurrent() {
+    if( need_count ) return false;
+    return adapter != null ||
+	solver.getCellCount() == getChildCount() + drawnCount();
+  }
+
+  /**
+   * Return the child under (x,y), or null if the grid can't tell.  The
+   * cell is found by binary search on the track offsets; then it must
+   * hold just the one child, untransformed, and the point must be
+   * inside the child itself, not in its margins or the rest of its
+   * cell.  Anything else is left for ViewGroup to search for.
+   */
+  private View findTouchTarget(float x, float y) {
+    // Frozen tracks don't scroll
+    final int fx = frozenCols(), fy = frozenRows();
+    final boolean pinx = fx > 0 &&
+	x >= solver.getColumnX(0) && x < solver.getColumnX(fx);
+    final boolean piny = fy > 0 &&
+	y >= solver.getRowY(0) && y < solver.getRowY(fy);
+    if( !pinx ) x += getScrollX();
+    if( !piny ) y += getScrollY();
+    final int col = solver.findColumn((int) Math.floor(x));
+    final int row = solver.findRow((int) Math.floor(y));
+    if( solver.findCells(col, row, col, row) != 1 ) return null;
+    final View child = cellView(solver.getFoundCell(0));
+    if( child == null ||
+	(child.getVisibility() != View.VISIBLE && child.getAnimation() == null) ||
+	!child.getMatrix().isIdentity() )
+      return null;
+    final LayoutParams lp = (LayoutParams) child.getLayoutParams();
+    if( (lp.gridx < fx) != pinx || (lp.gridy < fy) != piny )
+      return null;		// It's drawn somewhere else
+    final float px = x - child.getLeft();
+    final float py = y - child.getTop();
+    return px >= 0 && py >= 0 &&
+	    px < child.getWidth() && py < child.getHeight() ? child : null;
+  }
+
+  /**
+   * Pass a touch event to a child, in its coordinates.  If cancel is
+   * true, it's passed as ACTION_CANCEL.
+   */
+  private boolean dispatchToChild(MotionEvent ev, View child, boolean cancel) {
+    final int action = ev.getAction();
+    if( cancel ) ev.setAction(MotionEvent.ACTION_CANCEL);
+    final float dx = getScrollX() - pinnedX(child) - child.getLeft();
+    final float dy = getScrollY() - pinnedY(child) - child.getTop();
+    final boolean handled;
+    final Matrix m = child.getMatrix();
+    if( m.isIdentity() ) {
+      ev.offsetLocation(dx, dy);
+      handled = child.dispatchTouchEvent(ev);
+      ev.offsetLocation(-dx, -dy);
+    } else {
+      final MotionEvent e = MotionEvent.obtain(ev);
+      e.offsetLocation(dx, dy);
+      m.invert(inverse);
+      e.transform(inverse);
+      handled = child.dispatchTouchEvent(e);
+      e.recycle();
+    }
+    ev.setAction(action);
+    return handled;
+  }
+
+  // The view for cell i, or null
+  private View cellView(int i) {
+    if( i < 0 ) return null;
+    if( adapter != null ) return active.get(i);
+    return i < getChildCount() ? getChildAt(i) : null;
+  }
+
+  // Record what onMeasure() would like, before the parent's say.
+  private void want(int w, int h) {
+    want_w = w;
+    want_h = h;
+  }
+
+  /**
+   * Could this layout request have come from a child?  Only if nothing
+   * about the Gridbox itself that its parent cares about has changed
+   * since it was measured, and the parent gave it an exact size, so
+   * that what the children do can't change that size.
+   */
+  private boolean fromChild() {
+    final ViewGroup.LayoutParams lp = getLayoutParams();
+    return getVisibility() == View.VISIBLE &&
+      lp != null && lp == last_lp &&
+      lp.width == last_lp_w && lp.height == last_lp_h &&
+      getMinimumWidth() == last_min_w && getMinimumHeight() == last_min_h &&
+      MeasureSpec.getMode(last_wspec) == MeasureSpec.EXACTLY &&
+      MeasureSpec.getMode(last_hspec) == MeasureSpec.EXACTLY;
+  }
+
+  /**
+   * The local layout pass of a layout boundary:  measure again with
+   * the last specs, and if nothing the parent could see has changed,
+   * lay out again in place.
+   */
+  private void layoutLocally() {
+    if( !local_pending ) return;
+    local_pending = false;
+    if( isLayoutRequested() ) return;   // A full pass is coming anyway
+    if( !fromChild() ) {
+      super.requestLayout();
+      return;
+    }
+
+    final int w = want_w, h = want_h;
+    final int mw = getMeasuredWidth(), mh = getMeasuredHeight();
+    // measure() would use its cached result without this; unlike
+    // requestLayout(), it doesn't tell the parent.
+    forceLayout();
+    measure(last_wspec, last_hspec);
+    if( want_w != w || want_h != h ||
+	getMeasuredWidth() != mw || getMeasuredHeight() != mh )
+    {
+      super.requestLayout();
+      return;
+    }
+    layout(getLeft(), getTop(), getRight(), getBottom());
+    invalidate();
+  }
+
+  /**
+   * Parse a list of track sizes and hand it to the solver.  Throws
+   * IllegalArgumentException if an entry makes no sense.
+   */
+  private void setTrackSizes(String list, boolean columns) {
+    final String[] tokens = trackTokens(list);
+    int[] kinds = null;
+    float[] sizes = null;
+    if( tokens != null ) {
+      kinds = new int[tokens.length];
+      sizes = parseTrackSizes(tokens,
+		  getResources().getDisplayMetrics(), kinds);
+    }
+    if( columns ) solver.setColumnSizes(kinds, sizes);
+    else solver.setRowSizes(kinds, sizes);
+  }
+
+  // The entries of a list of track sizes, or null if there are none
+  static String[] trackTokens(String list) {
+    if( list == null || list.trim().length() == 0 ) return null;
+    return list.trim().split("[\\s,]+");
+  }
+
+  /*
+   * Parse track sizes as in gridbox:column_sizes.  Leaves their kinds
+   * in kinds[] and returns their sizes, in pixels for fixed tracks.
+   */
+  static float[] parseTrackSizes(String[] tokens, DisplayMetrics dm,
+    int[] kinds)
   {
-      final LayoutParams lp = (LayoutParams) child.getLayoutParams();
-      int excess;
-      int x = xs[lp.gridx] + lp.leftMargin;
-      int y = ys[lp.gridy] + lp.topMargin;
-      if( lp.gravity == Gravity.NO_GRAVITY ) lp.gravity = gravity;
-
-      final int hgravity = lp.gravity & Gravity.HORIZONTAL_GRAVITY_MASK;
-      final int width = computeCellWid(lp);
-      int mw = child.getMeasuredWidth();
-      final int cw = mw + lp.leftMargin + lp.rightMargin;
-
-      // Correct for preferred fill & alignment
-      //  hgravity:  object's gravity within the cell
-      //  width: total width of the cell
-      //  mw: child requested width ("measured width")
-      //  cw: child requested width plus margins
-      //  x: child left edge, after left margin
-      //  lw: layout width -- the width that will be assigned
-
-      if( hgravity != Gravity.FILL_HORIZONTAL && (excess = width - cw) > 0 )
-      {
-        switch( hgravity ) {
-          default:
-          case Gravity.LEFT: break;
-          case Gravity.CENTER_HORIZONTAL: x += excess/2; break;
-          case Gravity.RIGHT: x += excess; break;
-        }
-      } else {
-	mw = width - (lp.leftMargin + lp.rightMargin);
+    final float[] sizes = new float[tokens.length];
+    for( int k = 0; k < tokens.length; ++k ) {
+      final String tok = tokens[k].toLowerCase(Locale.US);
+      float scale = 1;
+      String num = tok;
+      kinds[k] = TRACK_FIXED;
+      if( tok.equals("auto") ) {
+	kinds[k] = TRACK_AUTO;
+	continue;
+      } else if( tok.endsWith("fr") ) {
+	kinds[k] = TRACK_FRACTION;
+	num = tok.length() > 2 ? tok.substring(0, tok.length() - 2) : "1";
+      } else if( tok.endsWith("px") ) {
+	num = tok.substring(0, tok.length() - 2);
+      } else if( tok.endsWith("dip") ) {
+	num = tok.substring(0, tok.length() - 3);
+	scale = dm.density;
+      } else if( tok.endsWith("dp") ) {
+	num = tok.substring(0, tok.length() - 2);
+	scale = dm.density;
+      } else if( tok.endsWith("sp") ) {
+	num = tok.substring(0, tok.length() - 2);
+	scale = dm.scaledDensity;
+      }
+      try {
+	sizes[k] = Float.parseFloat(num);
+      } catch( NumberFormatException e ) {
+	throw new IllegalArgumentException("Gridbox: bad track size \"" +
+	  tokens[k] + "\"");
       }
+      if( sizes[k] < 0 )
+	throw new IllegalArgumentException("Gridbox: bad track size \"" +
+	  tokens[k] + "\"");
+      if( kinds[k] == TRACK_FIXED ) sizes[k] = (int) (sizes[k] * scale + 0.5f);
+    }
+    return sizes;
+  }
 
-      final int vgravity = lp.gravity & Gravity.VERTICAL_GRAVITY_MASK;
-      final int height = computeCellHgt(lp);
-      int mh = child.getMeasuredHeight();
-      final int ch = mh + lp.topMargin + lp.bottomMargin;
+  // Index of a child, looking at the likeliest place first.  Only
+  // the last child is found without a search.
+  private int findChild(View child) {
+    final int last = getChildCount() - 1;
+    if( last >= 0 && getChildAt(last) == child ) return last;
+    return indexOfChild(child);
+  }
 
-      if( vgravity != Gravity.FILL_VERTICAL && (excess = height - ch) > 0 )
-      {
-        switch( vgravity ) {
-          default:
-          case Gravity.TOP: break;
-          case Gravity.CENTER_VERTICAL: y += excess/2; break;
-          case Gravity.BOTTOM: y += excess; break;
-        }
-      } else {
-	mh = height - (lp.topMargin + lp.bottomMargin);
+  /**
+   * Describe child i to the solver.  If it's visible and has no
+   * position yet, it gets one as in countCells().
+   */
+  private void pushCell(int i, View child, LayoutParams lp) {
+    if( template != null ) template.bind(i, lp);
+    if( child.getVisibility() == View.GONE ) {
+      solver.setVisible(i, false);
+      return;
+    }
+    if( lp.gravity == Gravity.NO_GRAVITY ) lp.gravity = gravity;
+    solver.setCell(i, lp.gridx, lp.gridy, lp.colSpan, lp.rowSpan);
+    solver.setCellParams(i, lp.weightx, lp.weighty, lp.gravity);
+    solver.setMargins(i,
+	lp.leftMargin, lp.topMargin, lp.rightMargin, lp.bottomMargin);
+    solver.setVisible(i, true);
+    solver.placeCell(i);
+    lp.gridx = solver.getGridx(i);
+    lp.gridy = solver.getGridy(i);
+    lp.colSpan = solver.getColSpan(i);
+    lp.rowSpan = solver.getRowSpan(i);
+  }
+
+  /**
+   * Find out how many cells wide and high this grid will be.
+   * Assign grid locations where needed.  After this, children coming,
+   * going, moving and changing visibility are applied one at a time
+   * (see onViewAdded(), onViewRemoved() and pushCell()), so this only
+   * needs to run again if that bookkeeping gets out of step.
+   */
+  private void countCells() {
+    if( !need_count ) {
+      return;
+    }
+    final int count = getChildCount();
+    final int ndrawn = drawnCount();
+    solver.setCellCount(count + ndrawn);
+    for( int k = 0; k < ndrawn; ++k ) {
+      solver.setVisible(count + k, true);
+      solver.setCell(count + k, drawn.gridx[k], drawn.gridy[k],
+		      drawn.colSpan[k], drawn.rowSpan[k]);
+    }
+    for( int i = 0; i < count; ++i ) {
+      final View child = getChildAt(i);
+      if( child != null && child.getVisibility() != View.GONE ) {
+        LayoutParams lp = (LayoutParams) child.getLayoutParams();
+        if( template != null ) template.bind(i, lp);
+        solver.setVisible(i, true);
+        solver.setCell(i, lp.gridx, lp.gridy, lp.colSpan, lp.rowSpan);
       }
+      else
+        solver.setVisible(i, false);
+    }
+
+    // Children laid out by a template can take its counting as is.
+    if( template == null || !solver.countCellsLike(template.shape) )
+      solver.countCells();
+
+    // Copy the assigned locations back to the children
+    for( int i = 0; i < count; ++i ) {
+      if( solver.isVisible(i) ) {
+        LayoutParams lp = (LayoutParams) getChildAt(i).getLayoutParams();
+        lp.gridx = solver.getGridx(i);
+        lp.gridy = solver.getGridy(i);
+        lp.colSpan = solver.getColSpan(i);
+        lp.rowSpan = solver.getRowSpan(i);
+      }
+    }
+    for( int k = 0; k < ndrawn; ++k ) copyDrawn(count + k, k);
+    need_count = false;
+  }
+
+  /*
+   * Describe the drawn cells to the solver, as cells first, first+1,
+   * ..., measuring any whose content has changed since last time.
+   */
+  private void measureDrawn(int first, int n) {
+    final CellRenderer r = getCellRenderer();
+    for( int k = 0; k < n; ++k ) {
+      final int i = first + k;
+      final int g = drawn.gravity[k] == Gravity.NO_GRAVITY ?
+	  gravity : drawn.gravity[k];
+      solver.setCell(i, drawn.gridx[k], drawn.gridy[k],
+		      drawn.colSpan[k], drawn.rowSpan[k]);
+      solver.setCellParams(i, drawn.weightx[k], drawn.weighty[k], g);
+      solver.setMargins(i, 0, 0, 0, 0);
+      solver.setVisible(i, true);
+      solver.placeCell(i);
+      copyDrawn(i, k);
+      if( !drawn.measured[k] ) {
+	r.measure(drawn, k, drawn_size);
+	drawn.width[k] = drawn_size[0];
+	drawn.height[k] = drawn_size[1];
+	drawn.measured[k] = true;
+      }
+      solver.setPreferredSize(i, drawn.width[k], drawn.height[k]);
+    }
+  }
+
+  // Copy cell i's assigned location back to drawn cell k
+  private void copyDrawn(int i, int k) {
+    drawn.gridx[k] = solver.getGridx(i);
+    drawn.gridy[k] = solver.getGridy(i);
+    drawn.colSpan[k] = solver.getColSpan(i);
+    drawn.rowSpan[k] = solver.getRowSpan(i);
+  }
+
+  // Number of drawn cells in the solver
+  private int drawnCount() {
+    return drawn == null || adapter != null ? 0 : drawn.size();
+  }
+
+
+  // Scrolling
+
+  private int maxScrollX() {
+    return Math.max(0, solver.getGridWidth() + getPaddingLeft() +
+			getPaddingRight() - getWidth());
+  }
+
+  private int maxScrollY() {
+    return Math.max(0, solver.getGridHeight() + getPaddingTop() +
+			getPaddingBottom() - getHeight());
+  }
+
+  private boolean pastTouchSlop(int x, int y) {
+    return (Math.abs(x - lastX) > touchSlop && maxScrollX() > 0) ||
+	   (Math.abs(y - lastY) > touchSlop && maxScrollY() > 0);
+  }
 
-      child.layout(x, y, x + mw, y + mh);
+  private void startDrag(int x, int y) {
+    dragging = true;
+    lastX = x;
+    lastY = y;
+    final ViewParent parent = getParent();
+    if( parent != null ) parent.requestDisallowInterceptTouchEvent(true);
+  }
+
+  /**
+   * Find the part of the grid that can currently be seen, in the same
+   * coordinates as the children.  Returns false if none of it can.
+   */
+  private boolean getViewport(Rect r) {
+    if( !getLocalVisibleRect(r) ) return false;
+    r.offset(getScrollX(), getScrollY());
+    return true;
+  }
+
+  /**
+   * Find the columns and rows which intersect the viewport, and
+   * leave them in visible_cells.  Returns false if there are none.
+   */
+  private boolean findVisibleCells() {
+    return getViewport(viewport) && findCellsIn(viewport);
+  }
+
+  /**
+   * The same, for the part of the grid within the canvas's clip.
+   */
+  private boolean findClippedCells(Canvas canvas) {
+    return canvas.getClipBounds(viewport) && findCellsIn(viewport);
+  }
+
+  // Find the columns and rows which intersect r, in child coordinates
+  private boolean findCellsIn(Rect r) {
+    if( solver.getCellCount() <= 0 ) return false;
+    final Rect v = visible_cells;
+    v.left = Math.max(solver.findColumn(r.left), 0);
+    v.right = Math.min(solver.findColumn(r.right - 1),
+			solver.getColumnCount() - 1);
+    v.top = Math.max(solver.findRow(r.top), 0);
+    v.bottom = Math.min(solver.findRow(r.bottom - 1),
+			solver.getRowCount() - 1);
+    return v.left <= v.right && v.top <= v.bottom;
+  }
+
+  // Does cell i overlap the given range of columns and rows?
+  private boolean cellInRange(int i, Rect range) {
+    final int x = solver.getGridx(i);
+    final int y = solver.getGridy(i);
+    return x <= range.right && x + solver.getColSpan(i) > range.left &&
+	   y <= range.bottom && y + solver.getRowSpan(i) > range.top;
+  }
+
+  /**
+   * Lay out the children which can be seen, if they haven't been laid
+   * out since the last onLayout().  Everything else waits until it is
+   * scrolled into view.  Children which haven't been laid out again may
+   * still be sitting where they were, but they're neither drawn nor
+   * touched:  both of those go by cell, not by where the child is.
+   */
+  private void placeVisibleChildren() {
+    if( !findVisibleCells() ) return;
+    final int count = Math.min(getChildCount(), solver.getCellCount());
+    final Rect v = visible_cells;
+    placeChildren(v.left, v.top, v.right, v.bottom, count);
+
+    // Frozen tracks are in view wherever we've scrolled to
+    final int fx = frozenCols(), fy = frozenRows();
+    if( fx > 0 ) placeChildren(0, v.top, fx - 1, v.bottom, count);
+    if( fy > 0 ) placeChildren(v.left, 0, v.right, fy - 1, count);
+    if( fx > 0 && fy > 0 ) placeChildren(0, 0, fx - 1, fy - 1, count);
+  }
+
+  private void placeChildren(int col0, int row0, int col1, int row1,
+    int count)
+  {
+    final int n = solver.findCells(col0, row0, col1, row1);
+    for( int k = 0; k < n; ++k ) {
+      final int i = solver.getFoundCell(k);
+      if( i < count ) placeChild(i);
+    }
+  }
+
+  // Frozen columns and rows actually in the grid
+  private int frozenCols() {
+    return scrollable && adapter == null ?
+	Math.min(frozen_cols, solver.getColumnCount()) : 0;
+  }
+
+  private int frozenRows() {
+    return scrollable && adapter == null ?
+	Math.min(frozen_rows, solver.getRowCount()) : 0;
+  }
+
+  // How far a child is moved to stay put when scrolling:  by the
+  // scroll offset, if it's in frozen columns (rows), else not at all.
+  private int pinnedX(View child) {
+    final int fx = frozenCols();
+    return fx > 0 && ((LayoutParams) child.getLayoutParams()).gridx < fx ?
+	getScrollX() : 0;
+  }
+
+  private int pinnedY(View child) {
+    final int fy = frozenRows();
+    return fy > 0 && ((LayoutParams) child.getLayoutParams()).gridy < fy ?
+	getScrollY() : 0;
+  }
+
+  // Lay out child i, if it hasn't been since the last onLayout()
+  private void placeChild(int i) {
+    final View child = getChildAt(i);
+    final LayoutParams lp = (LayoutParams) child.getLayoutParams();
+    if( lp.layoutGen == layout_gen || child.getVisibility() == View.GONE )
+      return;
+    solver.layoutCell(i);
+    final int x = solver.getFrameX(i);
+    final int y = solver.getFrameY(i);
+    settleChild(i, child);
+    child.layout(x, y,
+	x + solver.getFrameWidth(i), y + solver.getFrameHeight(i));
+    lp.layoutGen = layout_gen;
+  }
+
+
+  // Virtualized mode
+
+  /**
+   * Read the layout of every cell from the adapter.
+   */
+  private void loadCells() {
+    final int count = adapter.getCellCount();
+    solver.setCellCount(count);
+    for( int i = 0; i < count; ++i ) {
+      spec.reset();
+      adapter.getCellSpec(i, spec);
+      if( spec.gravity == Gravity.NO_GRAVITY ) spec.gravity = gravity;
+      solver.setVisible(i, true);
+      solver.setCell(i, spec.gridx, spec.gridy, spec.colSpan, spec.rowSpan);
+      solver.setCellParams(i, spec.weightx, spec.weighty, spec.gravity);
+      solver.setMargins(i,
+          spec.leftMargin, spec.topMargin, spec.rightMargin, spec.bottomMargin);
+      solver.setPreferredSize(i, spec.width, spec.height);
+    }
+    solver.countCells();
+    need_count = false;
+  }
+
+  /**
+   * onMeasure() for virtualized mode.  The cells' sizes come from the
+   * adapter, so no children need to be measured here.
+   */
+  private void measureVirtual(int widthMeasureSpec, int heightMeasureSpec,
+    int hpad, int vpad)
+  {
+    if( need_count ) loadCells();
+    solver.computeTrackSizes();
+    applyGroups();
+    want(solver.getPreferredWidth() + hpad, solver.getPreferredHeight() + vpad);
+    final int wid = getSize(solver.getPreferredWidth() + hpad,
+		  solver.getTotalWeightx(), solver.hasFractionalColumns(),
+		  widthMeasureSpec);
+    final int hgt = getSize(solver.getPreferredHeight() + vpad,
+		  solver.getTotalWeighty(), solver.hasFractionalRows(),
+		  heightMeasureSpec);
+    setMeasuredDimension(wid, hgt);
+    solver.distribute(wid - hpad, hgt - vpad);
+  }
+
+  /**
+   * onLayout() for virtualized mode.
+   */
+  private void layoutVirtual() {
+    solver.setOrigin(getPaddingLeft(), getPaddingTop());
+    if( need_bind ) {
+      // The data changed; every view needs to be bound again.
+      recycleAll();
+      need_bind = false;
+    }
+    updateVirtualChildren(true);
+  }
+
+  /**
+   * Make sure that exactly the cells which intersect the viewport have
+   * views.  Views of cells which have left the viewport are recycled,
+   * views for cells which have entered it are bound, measured and laid
+   * out.  If relayout is true, the views which stay are laid out again
+   * as well.  Returns true if anything changed.
+   */
+  private boolean updateVirtualChildren(boolean relayout) {
+    if( !findVisibleCells() ) {
+      bound_cells.set(-1, -1, -1, -1);
+      return recycleAll();
+    }
+    if( !relayout && visible_cells.equals(bound_cells) )
+      return false;
+    bound_cells.set(visible_cells);
+
+    boolean changed = relayout;
+
+    // Recycle views whose cells have gone out of sight.
+    for( int k = active.size() - 1; k >= 0; --k ) {
+      final int pos = active.keyAt(k);
+      if( !cellInRange(pos, visible_cells) ) {
+	recycle(active.valueAt(k));
+	active.removeAt(k);
+	changed = true;
+      } else if( relayout ) {
+	layoutVirtualChild(active.valueAt(k), pos);
+      }
+    }
+
+    // And bind views for the cells that have come into sight.
+    final Rect v = visible_cells;
+    final int n = solver.findCells(v.left, v.top, v.right, v.bottom);
+    for( int k = 0; k < n; ++k ) {
+      final int i = solver.getFoundCell(k);
+      if( active.get(i) == null ) {
+	final View child = obtainView(i);
+	active.put(i, child);
+	layoutVirtualChild(child, i);
+	changed = true;
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Get a view for the cell at this position, from the scrap heap if
+   * possible, bind it, and add it as a child.
+   */
+  private View obtainView(int position) {
+    final int type = adapter.getViewType(position);
+    final ArrayList<View> views = scrap.get(type);
+    View child = views.isEmpty() ? null : views.remove(views.size() - 1);
+    if( child == null ) child = adapter.createView(this, type);
+
+    final ViewGroup.LayoutParams p = child.getLayoutParams();
+    final LayoutParams lp;
+    if( checkLayoutParams(p) ) lp = (LayoutParams) p;
+    else if( p == null ) lp = generateDefaultLayoutParams();
+    else lp = generateLayoutParams(p);
+    lp.position = position;
+    lp.viewType = type;
+    lp.gridx = solver.getGridx(position);
+    lp.gridy = solver.getGridy(position);
+    lp.colSpan = solver.getColSpan(position);
+    lp.rowSpan = solver.getRowSpan(position);
+
+    adapter.bindView(child, position);
+    addViewInLayout(child, -1, lp, true);
+    return child;
+  }
+
+  private void layoutVirtualChild(View child, int position) {
+    solver.layoutCell(position);
+    final int x = solver.getFrameX(position);
+    final int y = solver.getFrameY(position);
+    final int w = solver.getFrameWidth(position);
+    final int h = solver.getFrameHeight(position);
+    child.measure(MeasureSpec.makeMeasureSpec(w, MeasureSpec.EXACTLY),
+		  MeasureSpec.makeMeasureSpec(h, MeasureSpec.EXACTLY));
+    child.layout(x, y, x + w, y + h);
+  }
+
+  private void recycle(View child) {
+    final LayoutParams lp = (LayoutParams) child.getLayoutParams();
+    removeViewInLayout(child);
+    scrap.get(lp.viewType).add(child);
+    lp.position = -1;
+  }
+
+  private boolean recycleAll() {
+    final int n = active.size();
+    for( int k = 0; k < n; ++k ) recycle(active.valueAt(k));
+    active.clear();
+    return n > 0;
   }
 
 
@@ -792,12 +2708,29 @@ if( width != new_wids[i] )
     public int gridy;           // Y position in the grid
     public int colSpan;         // # columns it occupies
     public int rowSpan;         // # rows it occupies
-    public int width;           // basic width of the view
-    public int height;          // basic height of the view
     public int gravity = Gravity.NO_GRAVITY;
     public float weightx = 0;
     public float weighty = 0;
 
+    // The child's answer to the last measure pass, and the specs it
+    // was asked with.
+    int lastWidthSpec, lastHeightSpec;
+    int lastWidth, lastHeight;
+    boolean measureValid = false;
+
+    // Measure cache:  width spec, height spec, width, height for each
+    // of the last few passes; see measureCached().
+    static final int CACHE_SIZE = 4;
+    final int[] cache = new int[CACHE_SIZE * 4];
+    int cacheCount, cacheNext;
+
+    // Virtualized mode: the adapter position this view is bound to
+    int position = -1;
+    int viewType;
+
+    // Scrolling: the onLayout() pass this child was last laid out in
+    int layoutGen = -1;
+
     public LayoutParams(Context c, AttributeSet attrs) {
 	super(c, attrs);
 
@@ -813,6 +2746,10 @@ if( width != new_wids[i] )
 	weighty = a.getFloat(R.styleable.Gridbox_Layout_layout_weighty, 0);
     }
 
+    public LayoutParams(int width, int height) {
+      super(width, height);
+    }
+
     public LayoutParams(ViewGroup.LayoutParams p) {
       super(p);
     }
@@ -0,0 +1,113 @@
+/**
+ * GridboxAdapter.java - supplies cells to a virtualized Gridbox
+ *
+ * Author: Edward A. Falk
+ *         efalk@users.sourceforge.net
+ *
+ *
+ */
+
+package org.efalk.gridbox;
+
+import android.database.DataSetObservable;
+import android.database.DataSetObserver;
+import android.view.Gravity;
+import android.view.View;
+import android.view.ViewGroup;
+
+/**
+ * A GridboxAdapter describes the cells of a Gridbox without the Gridbox
+ * needing a child view for each one.  Gridbox asks the adapter for the
+ * layout of every cell, sizes its rows and columns from that, and only
+ * creates and binds views for the cells which are actually on screen.
+ * Views which scroll out of sight are recycled.
+ *
+ * Cells are identified by position, 0 ... getCellCount()-1.  Each cell
+ * has the same layout parameters a child of a Gridbox would have, plus
+ * the size of its view.  Since the views don't exist yet, the adapter
+ * must supply that size itself; views are later measured EXACTLY to
+ * the size of their cell (if their gravity is fill) or to the size
+ * given here.
+ *
+ * Call notifyDataSetChanged() whenever the cells change.
+ */
+public abstract class GridboxAdapter {
+
+  private final DataSetObservable observers = new DataSetObservable();
+
+  /**
+   * Layout of one cell.  Same meaning as the Gridbox.LayoutParams
+   * fields, except that width and height are the preferred size of
+   * the cell's view in pixels, not including margins.
+   */
+  public static class CellSpec {
+    public int gridx, gridy;
+    public int colSpan, rowSpan;
+    public float weightx, weighty;
+    public int gravity;
+    public int width, height;
+    public int leftMargin, topMargin, rightMargin, bottomMargin;
+
+    public CellSpec() {
+      reset();
+    }
+
+    /** Restore the defaults: next cell over, 1x1, no weight. */
+    public void reset() {
+      gridx = gridy = -1;
+      colSpan = rowSpan = 1;
+      weightx = weighty = 0;
+      gravity = Gravity.NO_GRAVITY;
+      width = height = 0;
+      leftMargin = topMargin = rightMargin = bottomMargin = 0;
+    }
+  }
+
+  /** Return the number of cells. */
+  public abstract int getCellCount();
+
+  /**
+   * Fill in the layout of the cell at the given position.  The spec
+   * has been reset to its defaults before this is called.
+   */
+  public abstract void getCellSpec(int position, CellSpec spec);
+
+  /** Number of different kinds of view createView() returns. */
+  public int getViewTypeCount() {
+    return 1;
+  }
+
+  /** Which kind of view the cell at this position needs. */
+  public int getViewType(int position) {
+    return 0;
+  }
+
+  /**
+   * Create a new, unbound view of the given type.  Do not add it
+   * to the parent; Gridbox does that.
+   */
+  public abstract View createView(ViewGroup parent, int viewType);
+
+  /**
+   * Fill in a view to display the cell at the given position.  The
+   * view may previously have displayed some other cell.
+   */
+  public abstract void bindView(View view, int position);
+
+
+  public void registerDataSetObserver(DataSetObserver observer) {
+    observers.registerObserver(observer);
+  }
+
+  public void unregisterDataSetObserver(DataSetObserver observer) {
+    observers.unregisterObserver(observer);
+  }
+
+  /**
+   * Tell the Gridbox that cells have been added, removed, moved,
+   * resized or changed content.
+   */
+  public void notifyDataSetChanged() {
+    observers.notifyChanged();
+  }
+}